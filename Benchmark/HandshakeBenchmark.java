@@ -0,0 +1,357 @@
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// handshake cost: per-phase timings of the crypto and encoding steps, and complete
+// ClientHello..ClientFinished handshakes over loopback
+//
+// the phases run on the Task4/Task5 test files:
+//   certparse:  HandshakeCertificate from Task4/user-cert.pem (the JDK keeps recently parsed encodings, as for a returning client)
+//   certverify: Task4/user-cert.pem against Task4/ca-cert.pem
+//   rsaencrypt: session key (16 bytes) encrypted with the Task5 certificate, as in the Session message
+//   rsadecrypt: the same, decrypted with Task5/private-pkcs8.der
+//   rsasign:    digest encrypted with the private key, as in the Finished messages
+//   rsaverify:  the same, decrypted with the certificate
+//   digest:     HandshakeDigest over an encoded ClientHello
+//   encode:     HandshakeMessage.getBytes of a ClientHello
+//   decode:     HandshakeMessage.fromBytes of the same
+//
+// the Task5 certificate is not signed by any CA in the project, so the full handshakes use a
+// self-signed 2048-bit RSA identity made with keytool, for the server and the client alike.
+// handshakes/sec/core comes from the CPU time of the server threads, the client runs in the same
+// process and is not counted
+//
+// usage: java HandshakeBenchmark [--handshakes=<count>] [--warmup=<count>] [--iterations=<count>]
+//                                [--threads=<count>] [--keyexchange=rsa|ecdhe] [--taskdir=<dir>] [--json=<file>]
+public class HandshakeBenchmark {
+    private static String PROGRAMNAME = HandshakeBenchmark.class.getSimpleName();
+    private static String STOREPASS = "netpipebench";
+    private static Arguments arguments;
+
+    private static HandshakeCertificate identity;
+    private static byte[] identityKey;
+    private static ServerCredentials identityCredentials;
+
+    private static void usage() {
+        String indent = "";
+        System.err.println(indent + "Usage: " + PROGRAMNAME + " options");
+        System.err.println(indent + "Where options are:");
+        indent += "    ";
+        System.err.println(indent + "--handshakes=<number of measured handshakes>");
+        System.err.println(indent + "--warmup=<number of handshakes before measuring>");
+        System.err.println(indent + "--iterations=<number of runs of each phase>");
+        System.err.println(indent + "--threads=<number of concurrent clients>");
+        System.err.println(indent + "--keyexchange=rsa|ecdhe");
+        System.err.println(indent + "--taskdir=<directory with Task4 and Task5>");
+        System.err.println(indent + "--json=<file for results in JSON>");
+        System.exit(1);
+    }
+
+    private static void parseArgs(String[] args) {
+        arguments = new Arguments();
+        arguments.setArgumentSpec("handshakes", "number of measured handshakes");
+        arguments.setArgumentSpec("warmup", "number of handshakes before measuring");
+        arguments.setArgumentSpec("iterations", "number of runs of each phase");
+        arguments.setArgumentSpec("threads", "number of concurrent clients");
+        arguments.setArgumentSpec("keyexchange", "rsa|ecdhe");
+        arguments.setArgumentSpec("taskdir", "directory with Task4 and Task5");
+        arguments.setArgumentSpec("json", "file for results in JSON");
+        arguments.setDefault("handshakes", "2000");
+        arguments.setDefault("warmup", "500");
+        arguments.setDefault("iterations", "2000");
+        arguments.setDefault("threads", "1");
+        arguments.setDefault("keyexchange", SessionParameters.RSA);
+        arguments.setDefault("taskdir", "..");
+
+        try {
+            arguments.loadArguments(args);
+        } catch (IllegalArgumentException ex) {
+            usage();
+        }
+    }
+
+    // sorted timings of one phase, in nanoseconds
+    static class Timings {
+        private long[] nanos;
+
+        Timings(long[] nanos) {
+            this.nanos = nanos.clone();
+            Arrays.sort(this.nanos);
+        }
+
+        long percentile(int p) {
+            int index = (int) Math.ceil(p / 100.0 * nanos.length) - 1;
+            return nanos[Math.max(0, Math.min(index, nanos.length - 1))];
+        }
+
+        double mean() {
+            long sum = 0;
+            for(long n : nanos) {
+                sum += n;
+            }
+            return (double) sum / nanos.length;
+        }
+    }
+
+    // one step of the handshake, run over and over
+    interface Phase {
+        Object run() throws Exception;
+    }
+
+    // run a phase, first as warm-up, then timing every run
+    private static Timings measure(Phase phase, int iterations) throws Exception {
+        for(int i = 0; i < iterations; i++) {
+            phase.run();
+        }
+        long[] nanos = new long[iterations];
+        for(int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            phase.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        return new Timings(nanos);
+    }
+
+    private static Map<String, Timings> measurePhases(Path taskdir, int iterations) throws Exception {
+        byte[] userCertBytes = new HandshakeCertificate(new FileInputStream(taskdir.resolve("Task4/user-cert.pem").toFile())).getBytes();
+        HandshakeCertificate caCert = new HandshakeCertificate(new FileInputStream(taskdir.resolve("Task4/ca-cert.pem").toFile()));
+        HandshakeCertificate rsaCert = new HandshakeCertificate(new FileInputStream(taskdir.resolve("Task5/cert-pkcs1.pem").toFile()));
+        byte[] rsaKey = Files.readAllBytes(taskdir.resolve("Task5/private-pkcs8.der"));
+        HandshakeCrypto publicCrypto = new HandshakeCrypto(rsaCert);
+        HandshakeCrypto privateCrypto = new HandshakeCrypto(rsaKey);
+
+        byte[] sessionKey = new byte[16];
+        new Random(42).nextBytes(sessionKey);
+        byte[] encryptedKey = publicCrypto.encrypt(sessionKey);
+
+        HandshakeMessage clientHello = new HandshakeMessage(HandshakeMessage.MessageType.CLIENTHELLO);
+        clientHello.putBinaryParameter("Certificate", userCertBytes);
+        clientHello.putParameter("Transport", "stream");
+        byte[] clientHelloBytes = clientHello.getBytes();
+
+        HandshakeDigest digester = new HandshakeDigest();
+        digester.update(clientHelloBytes);
+        byte[] digest = digester.digest();
+        byte[] signedDigest = privateCrypto.encrypt(digest);
+
+        Map<String, Timings> phases = new LinkedHashMap<>();
+        phases.put("certparse", measure(() -> new HandshakeCertificate(userCertBytes), iterations));
+        // the CertificateFactory hands out the same parsed certificate for the same bytes, and that
+        // remembers a successful verify, so the signature check is timed on its own, as verify does it
+        X509Certificate userX509 = new HandshakeCertificate(userCertBytes).getCertificate();
+        byte[] tbs = userX509.getTBSCertificate();
+        byte[] signature = userX509.getSignature();
+        phases.put("certverify", measure(() -> {
+            Signature verifier = Signature.getInstance(userX509.getSigAlgName());
+            verifier.initVerify(caCert.getCertificate().getPublicKey());
+            verifier.update(tbs);
+            if(!verifier.verify(signature)) {
+                throw new SignatureException("user-cert.pem is not signed by ca-cert.pem");
+            }
+            return null;
+        }, iterations));
+        phases.put("rsaencrypt", measure(() -> publicCrypto.encrypt(sessionKey), iterations));
+        phases.put("rsadecrypt", measure(() -> privateCrypto.decrypt(encryptedKey), iterations));
+        phases.put("rsasign", measure(() -> privateCrypto.encrypt(digest), iterations));
+        phases.put("rsaverify", measure(() -> publicCrypto.decrypt(signedDigest), iterations));
+        phases.put("digest", measure(() -> {
+            HandshakeDigest hd = new HandshakeDigest();
+            hd.update(clientHelloBytes);
+            return hd.digest();
+        }, iterations));
+        phases.put("encode", measure(() -> clientHello.getBytes(), iterations));
+        phases.put("decode", measure(() -> HandshakeMessage.fromBytes(clientHelloBytes), iterations));
+        return phases;
+    }
+
+    // make the self-signed identity for the full handshakes
+    private static void createIdentity() throws Exception {
+        Path dir = Files.createTempDirectory("netpipe-bench");
+        Path store = dir.resolve("bench.p12");
+        String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "netpipe", "-keyalg", "RSA", "-keysize", "2048",
+                                             "-dname", "CN=localhost", "-validity", "2", "-storetype", "PKCS12",
+                                             "-keystore", store.toString(), "-storepass", STOREPASS)
+            .redirectErrorStream(true).start();
+        process.getInputStream().readAllBytes();
+        if(process.waitFor() != 0) {
+            throw new IOException("keytool failed");
+        }
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try(InputStream is = Files.newInputStream(store)) {
+            keyStore.load(is, STOREPASS.toCharArray());
+        }
+        identity = new HandshakeCertificate(keyStore.getCertificate("netpipe").getEncoded());
+        identityKey = ((PrivateKey) keyStore.getKey("netpipe", STOREPASS.toCharArray())).getEncoded();
+        identityCredentials = new ServerCredentials(identity, identityKey);
+        Files.delete(store);
+        Files.delete(dir);
+    }
+
+    // results of a series of full handshakes
+    static class HandshakeRun {
+        Timings latency;       // client connect to the server's reply after ClientFinished, one loopback trip more than the handshake
+        Timings serverCpu;     // CPU time of the server thread per handshake
+        double wallSeconds;
+        int count;
+    }
+
+    // run handshakes over loopback, clients from a pool of threads, one server thread per connection
+    private static HandshakeRun runHandshakes(int count, int threads, String keyExchange) throws Exception {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long[] latency = new long[count];
+        long[] serverCpu = new long[count];
+        AtomicInteger served = new AtomicInteger();
+        HandshakeRun run = new HandshakeRun();
+        run.count = count;
+
+        try(ServerSocket serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress())) {
+            ExecutorService serverPool = Executors.newCachedThreadPool();
+            Thread acceptor = new Thread(() -> {
+                for(int i = 0; i < count; i++) {
+                    Socket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    }
+                    catch(IOException ioe) {
+                        return;
+                    }
+                    serverPool.execute(() -> {
+                        try(Socket s = socket) {
+                            s.setTcpNoDelay(true);
+                            long cpuStart = mx.getCurrentThreadCpuTime();
+                            SessionCipher sessionCipher = new ServerHandshake(s, identityCredentials, identity, new SessionParameters(false)).run();
+                            serverCpu[served.getAndIncrement()] = mx.getCurrentThreadCpuTime() - cpuStart;
+                            if(sessionCipher == null) {
+                                System.err.printf("Handshake failed on the server\n");
+                                return;
+                            }
+                            s.getOutputStream().write(0);
+                        }
+                        catch(IOException ioe) {
+                            System.err.printf("Error in server connection: %s\n", ioe.getMessage());
+                        }
+                    });
+                }
+            });
+            acceptor.start();
+
+            ExecutorService clientPool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> clients = new ArrayList<>();
+            long wallStart = System.nanoTime();
+            for(int i = 0; i < count; i++) {
+                int index = i;
+                clients.add(clientPool.submit(() -> {
+                    long start = System.nanoTime();
+                    try(Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort())) {
+                        socket.setTcpNoDelay(true);
+                        SessionParameters parameters = new SessionParameters(true);
+                        parameters.setKeyExchange(keyExchange);
+                        if(new ClientHandshake(socket, identity, identity, identityKey, parameters).run() == null) {
+                            throw new IOException("Handshake " + index + " failed on the client");
+                        }
+                        // the server writes one byte when it has checked ClientFinished
+                        if(socket.getInputStream().read() != 0) {
+                            throw new IOException("Handshake " + index + " failed on the server");
+                        }
+                    }
+                    latency[index] = System.nanoTime() - start;
+                    return null;
+                }));
+            }
+            for(Future<?> client : clients) {
+                client.get();
+            }
+            run.wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+            clientPool.shutdown();
+            serverPool.shutdown();
+            acceptor.join();
+        }
+        run.latency = new Timings(latency);
+        run.serverCpu = new Timings(serverCpu);
+        return run;
+    }
+
+    private static void report(Map<String, Timings> phases, HandshakeRun run, String keyExchange, int threads) {
+        System.out.printf("%-12s %10s %10s %10s\n", "phase", "p50 us", "p99 us", "mean us");
+        for(Map.Entry<String, Timings> phase : phases.entrySet()) {
+            Timings t = phase.getValue();
+            System.out.printf("%-12s %10.1f %10.1f %10.1f\n", phase.getKey(), t.percentile(50) / 1e3, t.percentile(99) / 1e3, t.mean() / 1e3);
+        }
+        System.out.printf("\n%d %s handshakes, concurrent clients: %d\n", run.count, keyExchange, threads);
+        System.out.printf("%-12s %10.1f %10.1f %10.1f\n", "latency", run.latency.percentile(50) / 1e3, run.latency.percentile(99) / 1e3, run.latency.mean() / 1e3);
+        System.out.printf("%-12s %10.1f %10.1f %10.1f\n", "server cpu", run.serverCpu.percentile(50) / 1e3, run.serverCpu.percentile(99) / 1e3, run.serverCpu.mean() / 1e3);
+        System.out.printf("handshakes/sec/core: %.0f\n", 1e9 / run.serverCpu.mean());
+        System.out.printf("handshakes/sec:      %.0f (client and server on the same host)\n", run.count / run.wallSeconds);
+    }
+
+    private static void json(String file, Map<String, Timings> phases, HandshakeRun run, String keyExchange, int threads) throws IOException {
+        try(PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            out.printf("{\n  \"keyexchange\": \"%s\",\n  \"threads\": %d,\n  \"handshakes\": %d,\n  \"phases\": {\n", keyExchange, threads, run.count);
+            int i = 0;
+            for(Map.Entry<String, Timings> phase : phases.entrySet()) {
+                out.printf("    \"%s\": %s%s\n", phase.getKey(), json(phase.getValue()), ++i < phases.size() ? "," : "");
+            }
+            out.printf("  },\n  \"latency\": %s,\n  \"servercpu\": %s,\n", json(run.latency), json(run.serverCpu));
+            out.printf("  \"handshakesPerSecondPerCore\": %.1f,\n  \"handshakesPerSecond\": %.1f\n}\n",
+                       1e9 / run.serverCpu.mean(), run.count / run.wallSeconds);
+        }
+    }
+
+    private static String json(Timings t) {
+        return String.format("{ \"p50us\": %.2f, \"p99us\": %.2f, \"meanus\": %.2f }", t.percentile(50) / 1e3, t.percentile(99) / 1e3, t.mean() / 1e3);
+    }
+
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+        int handshakes = Integer.parseInt(arguments.get("handshakes"));
+        int warmup = Integer.parseInt(arguments.get("warmup"));
+        int iterations = Integer.parseInt(arguments.get("iterations"));
+        int threads = Integer.parseInt(arguments.get("threads"));
+        String keyExchange = arguments.get("keyexchange");
+        if(handshakes < 1 || iterations < 1 || threads < 1 || warmup < 0) {
+            System.err.printf("Counts must be positive\n");
+            usage();
+        }
+        if(!keyExchange.equals(SessionParameters.RSA) && !keyExchange.equals(SessionParameters.ECDHE)) {
+            System.err.printf("Unknown key exchange: %s\n", keyExchange);
+            usage();
+        }
+
+        Map<String, Timings> phases = measurePhases(Path.of(arguments.get("taskdir")), iterations);
+        createIdentity();
+        if(warmup > 0) {
+            runHandshakes(warmup, threads, keyExchange);
+        }
+        HandshakeRun run = runHandshakes(handshakes, threads, keyExchange);
+
+        report(phases, run, keyExchange, threads);
+        if(arguments.get("json") != null) {
+            json(arguments.get("json"), phases, run, keyExchange, threads);
+        }
+    }
+}
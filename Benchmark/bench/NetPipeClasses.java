@@ -0,0 +1,98 @@
+package bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+
+// access to the NetPipe classes from the benchmarks
+// NetPipe lives in the default package, which JMH does not accept for benchmark classes and which
+// code in a named package cannot import. the classes are looked up by name on the class path instead,
+// once per benchmark setup; the measured code only touches the JDK types they return
+final class NetPipeClasses {
+
+    private static final MethodHandle NEWKEY;         // new SessionKey(Integer size)
+    private static final MethodHandle NEWKEYBYTES;    // new SessionKey(byte[] keybytes)
+    private static final MethodHandle NEWCIPHER;      // new SessionCipher(SessionKey key)
+    private static final MethodHandle OPENENCRYPTER;  // sessionCipher.openEncrypter()
+    private static final MethodHandle OPENDECRYPTER;  // sessionCipher.openDecrypter()
+    private static final MethodHandle OPENOUTPUT;     // sessionCipher.openEncryptedOutputStream(OutputStream)
+    private static final MethodHandle OPENINPUT;      // sessionCipher.openDecryptedInputStream(InputStream)
+    private static final MethodHandle OPENPARALLELOUTPUT;  // sessionCipher.openParallelOutputStream(OutputStream)
+    private static final MethodHandle OPENPARALLELINPUT;   // sessionCipher.openParallelInputStream(InputStream)
+
+    static {
+        try {
+            Class<?> sessionKey = Class.forName("SessionKey");
+            Class<?> sessionCipher = Class.forName("SessionCipher");
+            NEWKEY = constructor(sessionKey, Integer.class);
+            NEWKEYBYTES = constructor(sessionKey, byte[].class);
+            NEWCIPHER = constructor(sessionCipher, sessionKey);
+            OPENENCRYPTER = method(sessionCipher, "openEncrypter");
+            OPENDECRYPTER = method(sessionCipher, "openDecrypter");
+            OPENOUTPUT = method(sessionCipher, "openEncryptedOutputStream", OutputStream.class);
+            OPENINPUT = method(sessionCipher, "openDecryptedInputStream", InputStream.class);
+            OPENPARALLELOUTPUT = method(sessionCipher, "openParallelOutputStream", OutputStream.class);
+            OPENPARALLELINPUT = method(sessionCipher, "openParallelInputStream", InputStream.class);
+        }
+        catch(ReflectiveOperationException roe) {
+            throw new ExceptionInInitializerError("NetPipe classes not found on the class path: " + roe);
+        }
+    }
+
+    private NetPipeClasses() {
+    }
+
+    private static MethodHandle constructor(Class<?> c, Class<?>... parameterTypes) throws ReflectiveOperationException {
+        Constructor<?> constructor = c.getDeclaredConstructor(parameterTypes);
+        constructor.setAccessible(true);
+        return MethodHandles.lookup().unreflectConstructor(constructor);
+    }
+
+    private static MethodHandle method(Class<?> c, String name, Class<?>... parameterTypes) throws ReflectiveOperationException {
+        Method method = c.getDeclaredMethod(name, parameterTypes);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method);
+    }
+
+    static Object newSessionKey(int size) throws Throwable {
+        return NEWKEY.invoke(Integer.valueOf(size));
+    }
+
+    static Object newSessionKey(byte[] keybytes) throws Throwable {
+        return NEWKEYBYTES.invoke(keybytes);
+    }
+
+    static Object newSessionCipher(Object sessionKey) throws Throwable {
+        return NEWCIPHER.invoke(sessionKey);
+    }
+
+    static Cipher openEncrypter(Object sessionCipher) throws Throwable {
+        return (Cipher) OPENENCRYPTER.invoke(sessionCipher);
+    }
+
+    static Cipher openDecrypter(Object sessionCipher) throws Throwable {
+        return (Cipher) OPENDECRYPTER.invoke(sessionCipher);
+    }
+
+    static CipherOutputStream openEncryptedOutputStream(Object sessionCipher, OutputStream os) throws Throwable {
+        return (CipherOutputStream) OPENOUTPUT.invoke(sessionCipher, os);
+    }
+
+    static CipherInputStream openDecryptedInputStream(Object sessionCipher, InputStream is) throws Throwable {
+        return (CipherInputStream) OPENINPUT.invoke(sessionCipher, is);
+    }
+
+    static OutputStream openParallelOutputStream(Object sessionCipher, OutputStream os) throws Throwable {
+        return (OutputStream) OPENPARALLELOUTPUT.invoke(sessionCipher, os);
+    }
+
+    static InputStream openParallelInputStream(Object sessionCipher, InputStream is) throws Throwable {
+        return (InputStream) OPENPARALLELINPUT.invoke(sessionCipher, is);
+    }
+}
@@ -0,0 +1,169 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.ShortBufferException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// throughput of the SessionCipher encryption paths, one payload per operation
+//   cipher*: Cipher.update on heap arrays, with the Cipher from openEncrypter/openDecrypter
+//   buffer*: Cipher.update on direct ByteBuffers, as SessionCipher.update does for the buffer path and the nio engine
+//   stream*: CipherOutputStream/CipherInputStream from openEncryptedOutputStream/openDecryptedInputStream
+//   parallel*: the streams of the "parallel" cipher path, reads of up to 64 KB as the forwarder does
+//              (chunks from 32 KB up are split over the common ForkJoinPool, see ParallelCtr)
+// bytes per second = score (ops/s) * payloadSize
+// every thread has its own SessionCipher, so runs with -t N show how the paths scale across cores
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionCipherBenchmark {
+
+    // plaintext shared by all threads, it is only read
+    @State(Scope.Benchmark)
+    public static class Payload {
+        @Param({"64", "1024", "16384", "1048576", "67108864"})
+        public int payloadSize;
+
+        byte[] data;
+
+        @Setup
+        public void setup() {
+            data = new byte[payloadSize];
+            new Random(42).nextBytes(data);
+        }
+    }
+
+    // per-thread session: key, ciphers, streams and output buffers
+    @State(Scope.Thread)
+    public static class Session {
+        @Param({"128", "192", "256"})
+        public int keySize;
+
+        Cipher encrypter;
+        Cipher decrypter;
+        CipherOutputStream encryptedOutput;
+        CipherInputStream decryptedInput;
+        OutputStream parallelOutput;
+        InputStream parallelInput;
+        byte[] output;
+        byte[] input;
+        byte[] bulkInput;
+        ByteBuffer directInput;
+        ByteBuffer directOutput;
+
+        @Setup
+        public void setup(Payload payload) throws Throwable {
+            Object sessionCipher = NetPipeClasses.newSessionCipher(NetPipeClasses.newSessionKey(keySize));
+            encrypter = NetPipeClasses.openEncrypter(sessionCipher);
+            decrypter = NetPipeClasses.openDecrypter(sessionCipher);
+            encryptedOutput = NetPipeClasses.openEncryptedOutputStream(sessionCipher, OutputStream.nullOutputStream());
+            decryptedInput = NetPipeClasses.openDecryptedInputStream(sessionCipher, new RepeatingInputStream(payload.data));
+            parallelOutput = NetPipeClasses.openParallelOutputStream(sessionCipher, OutputStream.nullOutputStream());
+            parallelInput = NetPipeClasses.openParallelInputStream(sessionCipher, new RepeatingInputStream(payload.data));
+            output = new byte[payload.payloadSize];
+            input = new byte[Math.min(payload.payloadSize, 16384)];
+            bulkInput = new byte[Math.min(payload.payloadSize, 65536)];
+            directInput = ByteBuffer.allocateDirect(payload.payloadSize);
+            directInput.put(payload.data).flip();
+            directOutput = ByteBuffer.allocateDirect(payload.payloadSize);
+        }
+    }
+
+    @Benchmark
+    public byte[] cipherEncrypt(Payload payload, Session session) throws ShortBufferException {
+        session.encrypter.update(payload.data, 0, payload.payloadSize, session.output, 0);
+        return session.output;
+    }
+
+    @Benchmark
+    public byte[] cipherDecrypt(Payload payload, Session session) throws ShortBufferException {
+        session.decrypter.update(payload.data, 0, payload.payloadSize, session.output, 0);
+        return session.output;
+    }
+
+    @Benchmark
+    public ByteBuffer bufferEncrypt(Session session) throws ShortBufferException {
+        session.directInput.rewind();
+        session.directOutput.clear();
+        session.encrypter.update(session.directInput, session.directOutput);
+        return session.directOutput;
+    }
+
+    @Benchmark
+    public void streamEncrypt(Payload payload, Session session) throws IOException {
+        session.encryptedOutput.write(payload.data, 0, payload.payloadSize);
+    }
+
+    @Benchmark
+    public int streamDecrypt(Payload payload, Session session) throws IOException {
+        int total = 0;
+        while(total < payload.payloadSize) {
+            int n = session.decryptedInput.read(session.input, 0, Math.min(session.input.length, payload.payloadSize - total));
+            if(n < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    @Benchmark
+    public void parallelEncrypt(Payload payload, Session session) throws IOException {
+        session.parallelOutput.write(payload.data, 0, payload.payloadSize);
+    }
+
+    @Benchmark
+    public int parallelDecrypt(Payload payload, Session session) throws IOException {
+        int total = 0;
+        while(total < payload.payloadSize) {
+            int n = session.parallelInput.read(session.bulkInput, 0, Math.min(session.bulkInput.length, payload.payloadSize - total));
+            if(n < 0) {
+                throw new IOException("Unexpected end of stream");
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    // endless input that repeats the same bytes, as the ciphertext source for streamDecrypt
+    static class RepeatingInputStream extends InputStream {
+        private byte[] data;
+        private int position = 0;
+
+        RepeatingInputStream(byte[] data) {
+            this.data = data;
+        }
+
+        public int read() {
+            int b = data[position] & 0xff;
+            position = (position + 1) % data.length;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position = (position + n) % data.length;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// cost of making a SessionKey, and of a whole SessionCipher with stream and Cipher setup,
+// which every connection pays once
+//   generate: new SessionKey(size), from the KeyGenerator
+//   fromBytes: new SessionKey(keybytes), as the server does with the key from the Session message
+//   openSession: new SessionCipher(key) plus openEncrypter and openDecrypter
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionKeyBenchmark {
+
+    @Param({"128", "192", "256"})
+    public int keySize;
+
+    byte[] keybytes;
+    Object sessionKey;
+
+    @Setup
+    public void setup() throws Throwable {
+        keybytes = new byte[keySize / 8];
+        new Random(42).nextBytes(keybytes);
+        sessionKey = NetPipeClasses.newSessionKey(keybytes);
+    }
+
+    @Benchmark
+    public Object generate() throws Throwable {
+        return NetPipeClasses.newSessionKey(keySize);
+    }
+
+    @Benchmark
+    public Object fromBytes() throws Throwable {
+        return NetPipeClasses.newSessionKey(keybytes);
+    }
+
+    @Benchmark
+    public Object openSession() throws Throwable {
+        Object sessionCipher = NetPipeClasses.newSessionCipher(sessionKey);
+        NetPipeClasses.openEncrypter(sessionCipher);
+        return NetPipeClasses.openDecrypter(sessionCipher);
+    }
+}
@@ -0,0 +1,16 @@
+#!/bin/bash
+# build and run HandshakeBenchmark for both key exchanges, results go to results/handshake-<keyexchange>.json
+#
+# usage: ./handshake.sh [options]      e.g. ./handshake.sh --handshakes=5000 --threads=4
+#
+# needs Java 21, no other libraries. run from anywhere, the Task4/Task5 files are found next to this directory
+set -e
+cd "$(dirname "$0")"
+
+rm -rf build/handshake && mkdir -p build/handshake results
+javac -d build/handshake $(ls ../NetPipe/*.java | grep -v Test.java) HandshakeBenchmark.java
+
+for kx in rsa ecdhe; do
+    java -cp build/handshake HandshakeBenchmark --taskdir=.. --keyexchange="$kx" --json="results/handshake-$kx.json" "$@"
+    echo
+done
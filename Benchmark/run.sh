@@ -0,0 +1,22 @@
+#!/bin/bash
+# build and run the JMH benchmarks, results go to results/<name>-<threads>t.json
+#
+# usage: ./run.sh [jmh options]      e.g. ./run.sh SessionCipherBenchmark -p payloadSize=1024
+#
+# needs Java 21 and the JMH jars in lib/ (or in the directory given by JMH_LIB):
+#   jmh-core-1.37.jar, jmh-generator-annprocess-1.37.jar, jopt-simple-5.0.4.jar, commons-math3-3.6.1.jar
+# (org.openjdk.jmh:jmh-core, org.openjdk.jmh:jmh-generator-annprocess and their dependencies on Maven Central)
+# THREADS lists the thread counts to run with, default "1 <number of processors>"
+set -e
+cd "$(dirname "$0")"
+JMH_LIB=${JMH_LIB:-lib}
+CP=$(ls "$JMH_LIB"/*.jar | tr '\n' ':')
+THREADS=${THREADS:-"1 $(nproc)"}
+
+rm -rf build && mkdir -p build/netpipe build/bench results
+javac -d build/netpipe $(ls ../NetPipe/*.java | grep -v Test.java)
+javac -proc:full -cp "$CP" -d build/bench bench/*.java
+
+for t in $THREADS; do
+    java -cp "build/bench:build/netpipe:$CP" org.openjdk.jmh.Main -t "$t" -rf json -rff "results/benchmarks-${t}t.json" "$@"
+done
@@ -0,0 +1,70 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// forwarding buffer from a BufferPool that adapts its size to the traffic
+// bulk transfers keep filling the buffer, so it doubles after GROWAFTER full reads in a row
+// interactive traffic only uses a little of it, so it halves after SHRINKAFTER small reads in a row
+// the current capacity is added to a footprint counter shared by the directions of a connection
+class AdaptiveBuffer {
+
+    private static int GROWAFTER = 4;
+    private static int SHRINKAFTER = 16;
+
+    private BufferPool pool;
+    private ByteBuffer buffer;
+    private AtomicInteger footprint;
+    private int fullReads = 0;
+    private int smallReads = 0;
+
+    AdaptiveBuffer(BufferPool pool, AtomicInteger footprint) {
+        this.pool = pool;
+        this.footprint = footprint;
+        this.buffer = pool.acquire(BufferPool.MINSIZE);
+        footprint.addAndGet(buffer.capacity());
+    }
+
+    // the current buffer -- may change after record()
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    // record how much the last read returned, and resize if the traffic pattern calls for it
+    // only call this when the buffer's content has been consumed
+    void record(int nread) {
+        int capacity = buffer.capacity();
+        if(nread >= capacity) {
+            smallReads = 0;
+            if(++fullReads >= GROWAFTER && capacity < BufferPool.MAXSIZE) {
+                resize(capacity * 2);
+            }
+        }
+        else if(nread < capacity / 4) {
+            fullReads = 0;
+            if(++smallReads >= SHRINKAFTER && capacity > BufferPool.MINSIZE) {
+                resize(capacity / 2);
+            }
+        }
+        else {
+            fullReads = 0;
+            smallReads = 0;
+        }
+    }
+
+    private void resize(int size) {
+        ByteBuffer resized = pool.acquire(size);
+        footprint.addAndGet(resized.capacity() - buffer.capacity());
+        pool.release(buffer);
+        buffer = resized;
+        fullReads = 0;
+        smallReads = 0;
+    }
+
+    // give the buffer back to the pool
+    void release() {
+        if(buffer != null) {
+            footprint.addAndGet(-buffer.capacity());
+            pool.release(buffer);
+            buffer = null;
+        }
+    }
+}
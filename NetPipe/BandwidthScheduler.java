@@ -0,0 +1,240 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// shares the server's outgoing bandwidth between connections
+// every connection (Flow) has a token bucket of its own, with the rate given for the CN of its client certificate,
+// and all connections together are held to a global rate. the global rate is shared by deficit round-robin:
+// connections that wait for it take turns, every turn adds QUANTUM bytes to the allowance (deficit counter) of
+// the connection and takes QUANTUM tokens from the global bucket. a connection spends its allowance on its next
+// writes, whatever their size, and only waits for another turn when it has too little left, so a bulk transfer
+// gets no more than its share, and a connection that writes now and then waits at most one quantum of each other
+// connection. writes are cut into pieces of at most QUANTUM bytes (see Forwarder.HalfCloseOutputStream)
+// the writing threads wait themselves, no thread is started; rates are in bytes per second, 0 means no limit
+//
+// limits per CN are read from a properties file, <CN>=<bytes per second>, with "*" for clients that are not listed
+public class BandwidthScheduler {
+
+    static final int QUANTUM = 16 * 1024;
+    static final String ANYCN = "*";
+    private static final long WINDOWNANOS = 1_000_000_000L;  // observed rates are measured over a second or more
+
+    private long globalRate;
+    private Map<String, Long> limits;
+    private ConcurrentHashMap<String, Flow> flows = new ConcurrentHashMap<>();
+
+    private ReentrantLock lock = new ReentrantLock();
+    private ArrayDeque<Flow> waiting = new ArrayDeque<>();  // guarded by lock, in round-robin order
+    private double tokens;                                  // guarded by lock
+    private long refilled = System.nanoTime();              // guarded by lock
+
+    public BandwidthScheduler(long globalRate, Map<String, Long> limits) {
+        this.globalRate = globalRate;
+        this.limits = limits;
+        this.tokens = burst(globalRate);
+    }
+
+    // limits per CN from a properties file
+    // return null if the file can't be read or a rate is not a number of bytes per second
+    public static Map<String, Long> loadLimits(String pathName) {
+        Properties properties = new Properties();
+        try(InputStream is = new FileInputStream(pathName)) {
+            properties.load(is);
+            Map<String, Long> limits = new HashMap<>();
+            for(String cn : properties.stringPropertyNames()) {
+                long rate = Long.parseLong(properties.getProperty(cn).trim());
+                if(rate < 0) {
+                    return null;
+                }
+                limits.put(cn, rate);
+            }
+            return limits;
+        }
+        catch(IOException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // bytes a bucket holds when it is full: a tenth of a second at its rate, and at least one quantum
+    private static double burst(long rate) {
+        return Math.max(QUANTUM, rate / 10.0);
+    }
+
+    // start scheduling a connection, named as in Metrics, of a client with the given CN (null if not known)
+    public Flow open(String name, String clientName) {
+        Long rate = clientName == null ? null : limits.get(clientName);
+        if(rate == null) {
+            rate = limits.getOrDefault(ANYCN, 0L);
+        }
+        Flow flow = new Flow(name, clientName, rate);
+        flows.put(name, flow);
+        return flow;
+    }
+
+    // connections being scheduled
+    public Iterable<Flow> getFlows() {
+        return flows.values();
+    }
+
+    public long getGlobalRate() {
+        return globalRate;
+    }
+
+    // give turns to waiting connections, in order, as long as the global tokens last
+    // when the first one has to wait for tokens, it is woken to wait for them with a timeout
+    private void schedule() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst(globalRate), tokens + (now - refilled) * globalRate / 1e9);
+        refilled = now;
+        Flow flow;
+        while((flow = waiting.peekFirst()) != null) {
+            if(flow.allowance < flow.wanted) {
+                if(tokens < QUANTUM) {
+                    flow.turn.signal();
+                    return;
+                }
+                tokens -= QUANTUM;
+                flow.allowance += QUANTUM;
+            }
+            waiting.pollFirst();
+            if(flow.allowance >= flow.wanted) {
+                flow.queued = false;
+                flow.turn.signal();
+            }
+            else {
+                waiting.addLast(flow);
+            }
+        }
+    }
+
+    // nanoseconds until the global bucket holds a quantum
+    private long tokenWait() {
+        return (long) Math.max(1, (QUANTUM - tokens) * 1e9 / globalRate);
+    }
+
+    // one connection; only one thread at a time writes to it
+    public class Flow {
+        private String name;
+        private String clientName;
+        private long rate;
+        private double ownTokens;                    // the connection's own bucket, used by the writing thread only
+        private long ownRefilled = System.nanoTime();
+        private long allowance = 0;                  // guarded by lock
+        private int wanted = 0;                      // guarded by lock
+        private boolean queued = false;              // guarded by lock
+        private Condition turn = lock.newCondition();
+        private volatile long windowStart = System.nanoTime();
+        private volatile long windowBytes = 0;
+        private volatile double observed = 0;
+
+        Flow(String name, String clientName, long rate) {
+            this.name = name;
+            this.clientName = clientName;
+            this.rate = rate;
+            this.ownTokens = burst(rate);
+        }
+
+        // wait until n bytes (at most QUANTUM) may be sent: first for the connection's own bucket, then for
+        // its turn at the global rate
+        public void acquire(int n) throws InterruptedIOException {
+            try {
+                if(rate > 0) {
+                    // tokens may go below zero; the wait pays the debt, which the next refill sees as time passed
+                    long now = System.nanoTime();
+                    ownTokens = Math.min(burst(rate), ownTokens + (now - ownRefilled) * rate / 1e9) - n;
+                    ownRefilled = now;
+                    if(ownTokens < 0) {
+                        TimeUnit.NANOSECONDS.sleep((long) (-ownTokens * 1e9 / rate));
+                    }
+                }
+                if(globalRate > 0) {
+                    waitTurn(n);
+                }
+            }
+            catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for bandwidth");
+            }
+            observe(n);
+        }
+
+        private void waitTurn(int n) throws InterruptedException {
+            lock.lock();
+            try {
+                wanted = n;
+                if(allowance < n && !queued) {
+                    queued = true;
+                    waiting.addLast(this);
+                }
+                while(allowance < n) {
+                    schedule();
+                    if(allowance >= n) {
+                        break;
+                    }
+                    if(waiting.peekFirst() == this) {
+                        turn.awaitNanos(tokenWait());
+                    }
+                    else {
+                        turn.await();
+                    }
+                }
+                allowance -= n;
+            }
+            catch(InterruptedException ie) {
+                // give up the place in the round, the next in line may be waiting for tokens
+                waiting.remove(this);
+                queued = false;
+                schedule();
+                throw ie;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        // count bytes sent, the observed rate is updated once a window has passed
+        private void observe(int n) {
+            long now = System.nanoTime();
+            windowBytes += n;
+            if(now - windowStart >= WINDOWNANOS) {
+                observed = windowBytes * 1e9 / (now - windowStart);
+                windowStart = now;
+                windowBytes = 0;
+            }
+        }
+
+        // the connection is done
+        public void close() {
+            flows.remove(name, this);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        // CN of the client, null if it is not known
+        public String getClientName() {
+            return clientName;
+        }
+
+        // limit of the connection, 0 for none
+        public long getRate() {
+            return rate;
+        }
+
+        // bytes per second sent over the last window, or since then if nothing has been sent for a while
+        public double getObservedRate() {
+            long since = System.nanoTime() - windowStart;
+            return since >= 2 * WINDOWNANOS ? windowBytes * 1e9 / since : observed;
+        }
+    }
+}
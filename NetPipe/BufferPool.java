@@ -0,0 +1,112 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// pool of forwarding buffers shared by all connections
+// buffers come in power-of-two size classes from MINSIZE to MAXSIZE and are cut from larger slabs,
+// so thousands of sessions don't each allocate (and later garbage collect) their own arrays
+// released buffers go back to the free list of their class and are handed out again
+public class BufferPool {
+
+    public static final int MINSIZE = 1024;
+    public static final int MAXSIZE = 64 * 1024;
+    private static final int SLABSIZE = 256 * 1024;
+    private static final int NCLASSES = Integer.numberOfTrailingZeros(MAXSIZE / MINSIZE) + 1;
+
+    // heap buffers for the stream path (InputStream.read needs an array), direct buffers for the channel paths
+    public static final BufferPool HEAP = new BufferPool(false);
+    public static final BufferPool DIRECT = new BufferPool(true);
+
+    private boolean direct;
+    private ConcurrentLinkedQueue<ByteBuffer>[] free;
+    private AtomicLong slabBytes = new AtomicLong();
+    private AtomicLong inUseBytes = new AtomicLong();
+    private AtomicLong inUseBuffers = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(boolean direct) {
+        this.direct = direct;
+        free = new ConcurrentLinkedQueue[NCLASSES];
+        for(int i = 0; i < NCLASSES; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    // round a requested size to its size class, between MINSIZE and MAXSIZE
+    public static int sizeClass(int size) {
+        if(size <= MINSIZE) {
+            return MINSIZE;
+        }
+        if(size >= MAXSIZE) {
+            return MAXSIZE;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static int classIndex(int classSize) {
+        return Integer.numberOfTrailingZeros(classSize / MINSIZE);
+    }
+
+    // get a cleared buffer with a capacity of sizeClass(size)
+    public ByteBuffer acquire(int size) {
+        int classSize = sizeClass(size);
+        ConcurrentLinkedQueue<ByteBuffer> list = free[classIndex(classSize)];
+        ByteBuffer buffer = list.poll();
+        if(buffer == null) {
+            buffer = carveSlab(classSize, list);
+        }
+        inUseBytes.addAndGet(classSize);
+        inUseBuffers.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    // give a buffer from acquire back to the pool
+    public void release(ByteBuffer buffer) {
+        int classSize = buffer.capacity();
+        inUseBytes.addAndGet(-classSize);
+        inUseBuffers.decrementAndGet();
+        free[classIndex(classSize)].offer(buffer);
+    }
+
+    // allocate a new slab, cut it into buffers of one size class,
+    // keep the first buffer for the caller and put the others on the free list
+    private ByteBuffer carveSlab(int classSize, ConcurrentLinkedQueue<ByteBuffer> list) {
+        ByteBuffer slab = direct ? ByteBuffer.allocateDirect(SLABSIZE) : ByteBuffer.allocate(SLABSIZE);
+        slabBytes.addAndGet(SLABSIZE);
+        ByteBuffer first = null;
+        for(int offset = 0; offset + classSize <= SLABSIZE; offset += classSize) {
+            ByteBuffer buffer = slab.slice(offset, classSize);
+            if(first == null) {
+                first = buffer;
+            }
+            else {
+                list.offer(buffer);
+            }
+        }
+        return first;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    // total memory held by the pool, in use or free
+    public long getSlabBytes() {
+        return slabBytes.get();
+    }
+
+    // memory handed out to forwarders right now
+    public long getInUseBytes() {
+        return inUseBytes.get();
+    }
+
+    public long getInUseBuffers() {
+        return inUseBuffers.get();
+    }
+
+    public String toString() {
+        return String.format("%s pool: %d bytes in slabs, %d bytes in %d buffers in use",
+                             direct ? "direct" : "heap", getSlabBytes(), getInUseBytes(), getInUseBuffers());
+    }
+}
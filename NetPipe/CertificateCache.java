@@ -0,0 +1,130 @@
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// cache of client certificates the server has parsed and checked against the CA
+// clients present the same certificates again and again, and parsing plus the RSA signature check
+// is a large part of a full handshake. entries are keyed by the SHA-256 of the DER encoding, so a
+// certificate is only ever matched with exactly the same bytes
+//
+// a cached result is only used while the certificate is within its validity dates; outside of them
+// the certificate counts as not verified. certificates that are not signed by the CA are checked again
+// every time rather than cached, so they can't push out good entries. when the cache is full, expired
+// entries are removed first, then arbitrary ones
+public class CertificateCache {
+
+    private HandshakeCertificate caCert;
+    private int maxEntries;
+    private ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+
+    public CertificateCache(HandshakeCertificate caCert, int maxEntries) {
+        this.caCert = caCert;
+        this.maxEntries = maxEntries;
+    }
+
+    // a parsed certificate with the result of its check against the CA
+    public static class Entry {
+        private HandshakeCertificate certificate;
+        private boolean signatureValid;
+        private long notBefore;  // milliseconds since the epoch
+        private long notAfter;
+
+        Entry(HandshakeCertificate certificate, boolean signatureValid) {
+            this.certificate = certificate;
+            this.signatureValid = signatureValid;
+            this.notBefore = certificate.getCertificate().getNotBefore().getTime();
+            this.notAfter = certificate.getCertificate().getNotAfter().getTime();
+        }
+
+        public HandshakeCertificate getCertificate() {
+            return certificate;
+        }
+
+        // signed by the CA and valid now
+        public boolean isVerified() {
+            long now = System.currentTimeMillis();
+            return signatureValid && now >= notBefore && now <= notAfter;
+        }
+
+        boolean isExpired(long now) {
+            return now > notAfter;
+        }
+    }
+
+    // parse a DER-encoded certificate and check it against the CA, or take the result from the cache
+    // throw CertificateException if the bytes are not a certificate (those are not cached, nor are certificates
+    // with a bad signature)
+    public Entry lookup(byte[] der) throws CertificateException {
+        String key = digest(der);
+        Entry entry = entries.get(key);
+        if(entry != null) {
+            hits.increment();
+            return entry;
+        }
+        misses.increment();
+        HandshakeCertificate certificate = new HandshakeCertificate(der);
+        boolean signatureValid;
+        try {
+            certificate.verify(caCert);
+            signatureValid = true;
+        }
+        catch(GeneralSecurityException gse) {
+            signatureValid = false;
+        }
+        entry = new Entry(certificate, signatureValid);
+        if(signatureValid && entries.size() >= maxEntries) {
+            evict();
+        }
+        if(signatureValid && maxEntries > 0) {
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    // make room: drop expired entries, and if that is not enough, whatever comes first
+    private void evict() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(e -> e.isExpired(now));
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while(entries.size() >= maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static String digest(byte[] der) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(der));
+        }
+        catch(GeneralSecurityException gse) {
+            throw new IllegalStateException("SHA-256 not available", gse);
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public String toString() {
+        return String.format("CertificateCache[entries=%d/%d, hits=%d, misses=%d]", getSize(), getMaxEntries(), getHits(), getMisses());
+    }
+}
@@ -0,0 +1,789 @@
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SignatureException;
+import java.security.spec.InvalidKeySpecException;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+
+// client side of the handshake for one connection to the server
+// errors are reported and the step returns null/false, the caller decides what to do with the connection
+//
+// with a saved session ticket, the client offers it in ClientHello. if the server accepts it, the session
+// is resumed: keys come from the ticket's resumption secret and fresh nonces, and the Finished messages
+// are HMACs, so no RSA operation is needed on either side. otherwise the full handshake follows.
+//
+// with the ecdhe key exchange, both hellos carry X25519 key shares and the session key is derived from
+// them (see KeyExchange) instead of being sent RSA-encrypted in a Session message
+//
+// handshake version 2 encrypts the session key and IV as one blob and signs digest and time stamp together,
+// see ServerHandshake
+//
+// in the pipelined mode the server certificate is known in advance, so ClientHello, Session and
+// ClientFinished go out together in one write without waiting for the server, and data can follow
+// right away. the server's hello and Finished are checked before anything from the server is used,
+// see openVerifiedInputStream
+public class ClientHandshake {
+
+    private Socket socket;
+    private HandshakeCertificate clientCert;
+    private HandshakeCertificate caCert;
+    private byte[] privateKey;
+    private SessionParameters parameters;
+
+    private HandshakeTranscript transcript = null;  // digests of the messages so far
+    private HandshakeCertificate serverCert = null;
+
+    private SessionTicket ticket = null;     // ticket offered in ClientHello
+    private boolean requestTicket = false;   // ask the server for a new ticket
+    private SessionTicket newTicket = null;  // ticket received in this handshake
+    private byte[] clientNonce = null;
+    private byte[] serverNonce = null;
+    private boolean resumed = false;
+    private KeyExchange keyExchange = null;   // ephemeral key pair, for the ecdhe key exchange
+    private byte[] serverKeyShare = null;
+
+    private HandshakeCertificate knownServerCert = null;  // server certificate for the pipelined mode
+    private ByteArrayOutputStream flight = null;          // messages collected for one write
+    private SessionCipher pendingCipher = null;           // session of a pipelined handshake not yet finished
+
+    private Metrics.Handshake metrics = new Metrics.Handshake("client");  // step durations and failure cause
+
+    // parameters holds the local settings, including the transport to ask for
+    public ClientHandshake(Socket socket, HandshakeCertificate clientCert, HandshakeCertificate caCert, byte[] privateKey, SessionParameters parameters) {
+        this.socket = socket;
+        this.clientCert = clientCert;
+        this.caCert = caCert;
+        this.privateKey = privateKey;
+        this.parameters = parameters;
+    }
+
+    // offer a saved ticket to resume its session
+    public void setTicket(SessionTicket ticket) {
+        this.ticket = ticket;
+    }
+
+    // ask the server for a ticket for the next connection
+    public void setRequestTicket(boolean requestTicket) {
+        this.requestTicket = requestTicket;
+    }
+
+    // ticket received in this handshake, or null
+    public SessionTicket getNewTicket() {
+        return newTicket;
+    }
+
+    // pipelined handshake with a server certificate known in advance (rsa key exchange, no ticket)
+    public void setPipelined(HandshakeCertificate serverCert) {
+        this.knownServerCert = serverCert;
+    }
+
+    // true while the server's part of a pipelined handshake has not been checked yet
+    public boolean isPending() {
+        return pendingCipher != null;
+    }
+
+    // true if the server accepted the offered ticket
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    // run the whole handshake with the server
+    // return the SessionCipher for the connection, or null if the handshake failed
+    // in the pipelined mode, run returns as soon as the client's messages are sent, and the handshake
+    // is finished by the first read from openVerifiedInputStream
+    public SessionCipher run() {
+        SessionCipher sessionCipher = null;
+        try {
+            sessionCipher = runHandshake();
+        }
+        finally {
+            // a pipelined handshake is not over until finish
+            if(sessionCipher == null || pendingCipher == null) {
+                metrics.finish(sessionCipher != null);
+            }
+        }
+        return sessionCipher;
+    }
+
+    // the steps of run
+    private SessionCipher runHandshake() {
+        try {
+            transcript = new HandshakeTranscript();
+            if(ticket != null) {
+                transcript.resume(ticket.getSecret());
+            }
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error creating digest\n");
+            return null;
+        }
+        if(knownServerCert != null) {
+            return runPipelined();
+        }
+        if(!sendClientHello()) {
+            return null;
+        }
+        if(!recvServerHello()) {
+            return null;
+        }
+        if(resumed) {
+            return runResumed();
+        }
+        SessionCipher sessionCipher;
+        if(keyExchange != null) {
+            sessionCipher = deriveSession();
+            if(sessionCipher == null) {
+                return null;
+            }
+        }
+        else {
+            sessionCipher = sendSession();
+            if(sessionCipher == null) {
+                return null;
+            }
+        }
+        if(!recvServerFinished(sessionCipher)) {
+            return null;
+        }
+        if(requestTicket && !recvSessionTicket(sessionCipher)) {
+            return null;
+        }
+        if(!sendClientFinished()) {
+            return null;
+        }
+
+        return sessionCipher;
+    }
+
+    // send ClientHello, Session and ClientFinished in one write, encrypting the session key for the known server
+    private SessionCipher runPipelined() {
+        metrics.phase("verifyServerCert");
+        if(!verifyServerCert(knownServerCert)) {
+            return null;
+        }
+        serverCert = knownServerCert;
+        flight = new ByteArrayOutputStream();
+        if(!sendClientHello()) {
+            return null;
+        }
+        SessionCipher sessionCipher = sendSession();
+        if(sessionCipher == null) {
+            return null;
+        }
+        if(!sendClientFinished()) {
+            return null;
+        }
+        try {
+            socket.getOutputStream().write(flight.toByteArray());
+            socket.getOutputStream().flush();
+        }
+        catch(IOException ioe) {
+            error("Error sending handshake\n");
+            return null;
+        }
+        flight = null;
+        pendingCipher = sessionCipher;
+
+        return sessionCipher;
+    }
+
+    // receive and check the server's messages of a pipelined handshake
+    // return false if the server could not be authenticated
+    public boolean finish() {
+        if(pendingCipher == null) {
+            return true;
+        }
+        SessionCipher sessionCipher = pendingCipher;
+        pendingCipher = null;
+        boolean finished = false;
+        try {
+            finished = finishPipelined(sessionCipher);
+        }
+        finally {
+            metrics.finish(finished);
+        }
+        return finished;
+    }
+
+    // the server's steps of a pipelined handshake
+    private boolean finishPipelined(SessionCipher sessionCipher) {
+        if(!recvServerHello()) {
+            return false;
+        }
+        if(!recvServerFinished(sessionCipher)) {
+            return false;
+        }
+        if(requestTicket && !recvSessionTicket(sessionCipher)) {
+            return false;
+        }
+
+        return true;
+    }
+
+    // input stream from the server for the data of the session
+    // for a pipelined handshake, the first read finishes the handshake; if the server fails the check,
+    // the connection is closed and the read throws an IOException
+    public InputStream openVerifiedInputStream() throws IOException {
+        return new VerifiedInputStream(socket.getInputStream());
+    }
+
+    private class VerifiedInputStream extends FilterInputStream {
+        private boolean verified = false;
+
+        VerifiedInputStream(InputStream in) {
+            super(in);
+        }
+
+        private synchronized void verify() throws IOException {
+            if(verified) {
+                return;
+            }
+            if(!finish()) {
+                socket.close();
+                throw new IOException("Server handshake failed");
+            }
+            verified = true;
+        }
+
+        public int read() throws IOException {
+            verify();
+            return in.read();
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            verify();
+            return in.read(b, off, len);
+        }
+
+        public int available() throws IOException {
+            verify();
+            return in.available();
+        }
+
+        public long skip(long n) throws IOException {
+            verify();
+            return in.skip(n);
+        }
+    }
+
+    // send a handshake message, or add it to the flight being collected
+    private void send(HandshakeMessage hm) throws IOException {
+        HandshakeMessage.send(flight != null ? flight : socket.getOutputStream(), transcript.add(hm));
+    }
+
+    // rest of a resumed handshake, after ServerHello
+    private SessionCipher runResumed() {
+        try {
+            SessionCipher sessionCipher = SessionTicket.resumedCipher(ticket.getSecret(), clientNonce, serverNonce);
+            if(!recvResumedFinished()) {
+                return null;
+            }
+            if(requestTicket && !recvSessionTicket(sessionCipher)) {
+                return null;
+            }
+            if(!sendResumedFinished()) {
+                return null;
+            }
+
+            return sessionCipher;
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error deriving resumed session keys\n");
+            return null;
+        }
+    }
+
+    // report an error, and count it as the cause if the handshake fails
+    private void error(String format, Object... args) {
+        System.err.printf(format, args);
+        metrics.fail(format.strip());
+    }
+
+    // verify server certificate against CA
+    private boolean verifyServerCert(HandshakeCertificate server) {
+        try {
+            server.verify(caCert);
+
+            return true;
+        }
+        catch(CertificateException | NoSuchAlgorithmException | InvalidKeyException | SignatureException | NoSuchProviderException e) {
+            error("Error verifying server certificate\n");
+            return false;
+        }
+    }
+
+    // send ClientHello message
+    // a transport other than the default ctr is requested with the Transport parameter,
+    // deflate compression is offered with the Compression parameter, a multiplexed session
+    // is requested with the Multiplex parameter, and the integrity check is offered with Integrity. handshake versions above 1 are offered with HandshakeVersion
+    // a saved ticket is offered with a fresh nonce; the certificate is always included,
+    // so the server can fall back to the full handshake
+    // for ecdhe, the key exchange is requested and the client's key share added
+    private boolean sendClientHello() {
+        metrics.phase("sendClientHello");
+        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.CLIENTHELLO);
+        try {
+            X509Certificate cert = clientCert.getCertificate();
+            byte[] certBytes = cert.getEncoded();
+            hm.putBinaryParameter("Certificate", certBytes);
+            if(!parameters.getTransport().equals(SessionParameters.CTR)) {
+                hm.putParameter("Transport", parameters.getTransport());
+            }
+            if(parameters.getCompression().equals(SessionParameters.DEFLATE)) {
+                hm.putParameter("Compression", SessionParameters.DEFLATE);
+            }
+            if(parameters.isMultiplex()) {
+                hm.putParameter("Multiplex", "yes");
+            }
+            if(parameters.getIntegrity().equals(SessionParameters.SHA256)) {
+                hm.putParameter("Integrity", SessionParameters.SHA256);
+            }
+            if(parameters.getHandshakeVersion() >= 2) {
+                hm.putParameter("HandshakeVersion", Integer.toString(parameters.getHandshakeVersion()));
+            }
+            if(parameters.getKeyExchange().equals(SessionParameters.ECDHE)) {
+                keyExchange = new KeyExchange();
+                hm.putParameter("KeyExchange", SessionParameters.ECDHE);
+                hm.putBinaryParameter("KeyShare", keyExchange.getPublicKeyBytes());
+            }
+            if(ticket != null) {
+                clientNonce = SessionTicket.newNonce();
+                hm.putBinaryParameter("Ticket", ticket.getTicket());
+                hm.putBinaryParameter("ClientNonce", clientNonce);
+            }
+            if(requestTicket) {
+                hm.putParameter("TicketRequest", "yes");
+            }
+            send(hm);
+
+            return true;
+        }
+        catch(CertificateEncodingException cee) {
+            error("Error getting encoded certificate\n");
+            return false;
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error creating key share\n");
+            return false;
+        }
+        catch(IOException ioe) {
+            error("Error sending ClientHello\n");
+            return false;
+        }
+    }
+
+    // receive ServerHello
+    // either the server resumes the session (Resumed and a server nonce), or it sends its certificate,
+    // which is verified
+    // the server must confirm the transport, key exchange and multiplexing that were requested
+    // compression and the integrity check are used when the server confirms them, and the server may only
+    // confirm what was offered
+    // the handshake version is the one the server confirms, 1 if it confirms none; a pipelined handshake
+    // has sent its Session already, so there the server must confirm the offered version
+    private boolean recvServerHello() {
+        metrics.phase("recvServerHello");
+        try {
+            HandshakeMessage hm = transcript.recv(socket);
+            if(hm.getType().getCode() != 2) {
+                throw new IOException();
+            }
+            if(ticket != null && "yes".equals(hm.getParameter("Resumed"))) {
+                resumed = true;
+                serverNonce = hm.getBinaryParameter("ServerNonce");
+                if(serverNonce == null) {
+                    throw new IOException();
+                }
+            }
+            else {
+                byte[] decodedCert = hm.getBinaryParameter("Certificate");
+                if(decodedCert == null) {
+                    error("Missing server certificate\n");
+                    return false;
+                }
+                serverCert = new HandshakeCertificate(decodedCert);
+                if(!verifyServerCert(serverCert)) {
+                    return false;
+                }
+                if(knownServerCert != null && !Arrays.equals(decodedCert, knownServerCert.getBytes())) {
+                    error("Server certificate does not match the known server certificate\n");
+                    return false;
+                }
+                String exchange = hm.getParameter("KeyExchange");
+                if(exchange == null) {
+                    exchange = SessionParameters.RSA;
+                }
+                if(!exchange.equals(parameters.getKeyExchange()) || (keyExchange != null && hm.getBinaryParameter("KeyShare") == null)) {
+                    error("Server did not agree on key exchange %s\n", parameters.getKeyExchange());
+                    return false;
+                }
+                if(keyExchange != null) {
+                    serverKeyShare = hm.getBinaryParameter("KeyShare");
+                }
+                if(!agreeVersion(hm.getParameter("HandshakeVersion"))) {
+                    return false;
+                }
+            }
+            String transport = hm.getParameter("Transport");
+            if(transport == null) {
+                transport = SessionParameters.CTR;
+            }
+            if(!transport.equals(parameters.getTransport())) {
+                error("Server did not agree on transport %s\n", parameters.getTransport());
+                return false;
+            }
+            String compression = hm.getParameter("Compression");
+            if(compression == null) {
+                parameters.setCompression(SessionParameters.NONE);
+            }
+            else if(!compression.equals(parameters.getCompression())) {
+                error("Server chose compression %s, which was not offered\n", compression);
+                return false;
+            }
+            if(parameters.isMultiplex() != "yes".equals(hm.getParameter("Multiplex"))) {
+                error("Server did not agree on multiplexing\n");
+                return false;
+            }
+            String integrity = hm.getParameter("Integrity");
+            if(integrity == null) {
+                parameters.setIntegrity(SessionParameters.NONE);
+            }
+            else if(!integrity.equals(parameters.getIntegrity())) {
+                error("Server chose integrity check %s, which was not offered\n", integrity);
+                return false;
+            }
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error receiving ServerHello from server\n");
+            return false;
+        }
+        catch(CertificateException ce) {
+            error("Error reading server certificate\n");
+            return false;
+        }
+    }
+
+    // the handshake version confirmed in ServerHello
+    private boolean agreeVersion(String version) {
+        int agreed = 1;
+        try {
+            if(version != null) {
+                agreed = Integer.parseInt(version);
+            }
+        }
+        catch(NumberFormatException nfe) {
+            agreed = 0;
+        }
+        if(agreed < 1 || agreed > parameters.getHandshakeVersion()) {
+            error("Server chose handshake version %s, which was not offered\n", version);
+            return false;
+        }
+        if(knownServerCert != null && agreed != parameters.getHandshakeVersion()) {
+            error("Server did not agree on handshake version %d\n", parameters.getHandshakeVersion());
+            return false;
+        }
+        parameters.setHandshakeVersion(agreed);
+        return true;
+    }
+
+    // send Session message and get session key + IV
+    // version 1 encrypts them one by one, version 2 as one blob (key followed by IV)
+    private SessionCipher sendSession() {
+        metrics.phase("sendSession");
+        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.SESSION);
+        HandshakeCrypto hc = new HandshakeCrypto(serverCert);
+        try {
+            SessionKey sk = new SessionKey(128);
+            SessionCipher sc = new SessionCipher(sk);
+            byte[] SKBytes = sk.getKeyBytes();
+            byte[] IVBytes = sc.getIVBytes();
+            if(parameters.getHandshakeVersion() >= 2) {
+                byte[] blob = Arrays.copyOf(SKBytes, SKBytes.length + IVBytes.length);
+                System.arraycopy(IVBytes, 0, blob, SKBytes.length, IVBytes.length);
+                hm.putBinaryParameter("SessionBlob", hc.encrypt(blob));
+            }
+            else {
+                SKBytes = hc.encrypt(SKBytes);
+                IVBytes = hc.encrypt(IVBytes);
+                hm.putBinaryParameter("SessionKey", SKBytes);
+                hm.putBinaryParameter("SessionIV", IVBytes);
+            }
+            send(hm);
+
+            return sc;
+        }
+        catch(NoSuchAlgorithmException nsae) {
+            error("Error creating session key\n");
+            return null;
+        }
+        catch(NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
+            error("Error encrypting session message\n");
+            return null;
+        }
+        catch(IOException ioe) {
+            error("Error sending Session\n");
+            return null;
+        }
+    }
+
+    // ecdhe: session key + IV from the shared secret and both hellos
+    private SessionCipher deriveSession() {
+        metrics.phase("deriveSession");
+        try {
+            byte[] sharedSecret = keyExchange.sharedSecret(serverKeyShare);
+            return KeyExchange.sessionCipher(sharedSecret, transcript.getKeyDerivationDigest());
+        }
+        catch(GeneralSecurityException | RuntimeException e) {
+            error("Error deriving session key from key shares\n");
+            return null;
+        }
+    }
+
+    // receive ServerFinished message and check integrity and authentication of handshake
+    private boolean recvServerFinished(SessionCipher sessionCipher) {
+        metrics.phase("recvServerFinished");
+        if(parameters.getHandshakeVersion() >= 2) {
+            return recvServerFinished2(sessionCipher);
+        }
+        HandshakeCrypto hc = new HandshakeCrypto(serverCert);
+        try {
+            HandshakeMessage hm = transcript.recv(socket);
+            if(hm.getType().getCode() != 5) {
+                throw new IOException();
+            }
+
+            LocalDateTime clientLDT = LocalDateTime.now();
+            byte[] decodedServerTD = hm.getBinaryParameter("TimeStamp");
+            byte[] decodedSign = hm.getBinaryParameter("Signature");
+            if(decodedServerTD == null || decodedSign == null) {
+                throw new IOException();
+            }
+            decodedServerTD = hc.decrypt(decodedServerTD);
+            String serverTD = new String(decodedServerTD, StandardCharsets.UTF_8);
+            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+            LocalDateTime serverLDT = LocalDateTime.parse(serverTD, dtf);
+            Duration duration = Duration.between(serverLDT, clientLDT);
+            long secondsDiff = duration.getSeconds();
+            if(Math.abs(secondsDiff) > 10) {
+                throw new DateTimeException("");
+            }
+
+            byte[] serverDigest = hc.decrypt(decodedSign);
+            byte[] localDigest = keyExchange != null ? transcript.getHellosDigest() : transcript.getServerHelloDigest();
+            if(!(Arrays.equals(localDigest, serverDigest))) {
+                throw new ArrayStoreException(); // might be bad programming but I want a unique Exception to catch
+            }
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error receiving ServerFinished from server\n");
+            return false;
+        }
+        catch(NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
+            error("Error decrypting ServerFinished from server\n");
+            return false;
+        }
+        catch(DateTimeException dte) {
+            error("ServerFinished message too old (10 seconds)\n");
+            return false;
+        }
+        catch(ArrayStoreException ase) {
+            error("Integrity check failed\n");
+            return false;
+        }
+    }
+
+    // ServerFinished of version 2, with the time stamp in the clear
+    // rsa: a MAC keyed from the session key, which only the server could decrypt (see ServerHandshake)
+    // ecdhe: a signature over the digest of both hellos and the time stamp
+    private boolean recvServerFinished2(SessionCipher sessionCipher) {
+        try {
+            HandshakeMessage hm = transcript.recv(socket);
+            if(hm.getType().getCode() != 5) {
+                throw new IOException();
+            }
+            String timeStamp = hm.getParameter("TimeStamp");
+            if(timeStamp == null) {
+                throw new IOException();
+            }
+            byte[] timeStampBytes = timeStamp.getBytes(StandardCharsets.UTF_8);
+            boolean valid;
+            if(keyExchange != null) {
+                byte[] signature = hm.getBinaryParameter("Signature");
+                valid = signature != null && new HandshakeCrypto(serverCert).verify(signature, transcript.getHellosDigest(), timeStampBytes);
+            }
+            else {
+                byte[] secret = SessionTicket.finishedSecret(sessionCipher);
+                byte[] localMac = SessionTicket.hmac(secret, "server finished", transcript.getHellosDigest(), transcript.getSessionDigest(), timeStampBytes);
+                byte[] serverMac = hm.getBinaryParameter("MAC");
+                valid = serverMac != null && MessageDigest.isEqual(localMac, serverMac);
+            }
+            if(!valid) {
+                error("Integrity check failed\n");
+                return false;
+            }
+            if(!HandshakeMessage.isFresh(timeStampBytes)) {
+                error("ServerFinished message too old (10 seconds)\n");
+                return false;
+            }
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error receiving ServerFinished from server\n");
+            return false;
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error checking ServerFinished from server\n");
+            return false;
+        }
+    }
+
+    // send ClientFinished message
+    // version 1 encrypts the digest and the time stamp with the private key one by one,
+    // version 2 signs both at once and sends the time stamp in the clear
+    private boolean sendClientFinished() {
+        metrics.phase("sendClientFinished");
+        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.CLIENTFINISHED);
+        try {
+            HandshakeCrypto hc = new HandshakeCrypto(privateKey);
+            byte[] digest = keyExchange != null ? transcript.getHellosDigest() : transcript.getSessionDigest();
+            if(parameters.getHandshakeVersion() >= 2) {
+                byte[] timeStamp = HandshakeMessage.timeStamp();
+                hm.putParameter("TimeStamp", new String(timeStamp, StandardCharsets.UTF_8));
+                hm.putBinaryParameter("Signature", hc.sign(digest, timeStamp));
+                send(hm);
+
+                return true;
+            }
+            byte[] signedDigest = hc.encrypt(digest);
+            hm.putBinaryParameter("Signature", signedDigest);
+
+            LocalDateTime ldt = LocalDateTime.now();
+            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+            String dateTime = ldt.format(dtf);
+            byte[] dtArray = dateTime.getBytes(StandardCharsets.UTF_8);
+            byte[] signedDT = hc.encrypt(dtArray);
+            hm.putBinaryParameter("TimeStamp", signedDT);
+
+            send(hm);
+
+            return true;
+        }
+        catch(NoSuchAlgorithmException nsae) {
+            error("Error creating digest\n");
+            return false;
+        }
+        catch(InvalidKeySpecException ikse) {
+            error("Error instatiating private key\n");
+            return false;
+        }
+        catch(NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException | SignatureException e) {
+            error("Error encrypting digest\n");
+            return false;
+        }
+        catch(IOException ioe) {
+            error("Error sending ClientFinished\n");
+            return false;
+        }
+    }
+
+    // receive SessionTicket message and keep the ticket with the resumption secret of this session
+    private boolean recvSessionTicket(SessionCipher sessionCipher) {
+        metrics.phase("recvSessionTicket");
+        try {
+            HandshakeMessage hm = transcript.recv(socket);
+            if(hm.getType().getCode() != 6) {
+                throw new IOException();
+            }
+            byte[] decodedTicket = hm.getBinaryParameter("Ticket");
+            if(decodedTicket != null) {
+                String lifetimeParameter = hm.getParameter("Lifetime");
+                if(lifetimeParameter == null) {
+                    throw new IOException();
+                }
+                long lifetime = Long.parseLong(lifetimeParameter);
+                long now = System.currentTimeMillis();
+                byte[] secret = SessionTicket.resumptionSecret(sessionCipher);
+                newTicket = new SessionTicket(decodedTicket, secret, clientCert.getCN(), now, now + lifetime * 1000);
+            }
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error receiving SessionTicket from server\n");
+            return false;
+        }
+        catch(NumberFormatException nfe) {
+            error("Bad ticket lifetime from server\n");
+            return false;
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error deriving resumption secret\n");
+            return false;
+        }
+    }
+
+    // receive ServerFinished of a resumed session: HMAC with the resumption secret over both hellos (see HandshakeTranscript)
+    private boolean recvResumedFinished() {
+        metrics.phase("recvResumedFinished");
+        try {
+            HandshakeMessage hm = transcript.recv(socket);
+            if(hm.getType().getCode() != 5) {
+                throw new IOException();
+            }
+            byte[] serverMac = hm.getBinaryParameter("MAC");
+            if(serverMac == null) {
+                throw new IOException();
+            }
+            byte[] localMac = transcript.getServerFinishedMac();
+            if(!MessageDigest.isEqual(localMac, serverMac)) {
+                error("Integrity check failed\n");
+                return false;
+            }
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error receiving ServerFinished from server\n");
+            return false;
+        }
+    }
+
+    // send ClientFinished of a resumed session
+    private boolean sendResumedFinished() {
+        metrics.phase("sendResumedFinished");
+        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.CLIENTFINISHED);
+        try {
+            byte[] mac = transcript.getClientFinishedMac();
+            hm.putBinaryParameter("MAC", mac);
+            send(hm);
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error sending ClientFinished\n");
+            return false;
+        }
+    }
+}
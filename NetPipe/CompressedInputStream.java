@@ -0,0 +1,97 @@
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// receiving side of the deflate compression stage, see CompressedOutputStream for the format
+// raw frames are passed through, deflated frames go through one Inflater for the whole stream
+// end of file is only reported between frames; a stream that ends inside a frame is reported as truncated
+public class CompressedInputStream extends FilterInputStream {
+
+    private Inflater inflater = new Inflater(true);
+    private byte[] header = new byte[CompressedOutputStream.HEADERBYTES];
+    private byte[] payload = new byte[CompressedOutputStream.MAXFRAME];
+    private int rawRemaining = 0;
+    private boolean eof = false;
+
+    public CompressedInputStream(InputStream in) {
+        super(in);
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        while(true) {
+            if(rawRemaining > 0) {
+                int n = in.read(b, off, Math.min(len, rawRemaining));
+                if(n == -1) {
+                    throw new EOFException("Compressed stream truncated");
+                }
+                rawRemaining -= n;
+                return n;
+            }
+            if(!inflater.needsInput()) {
+                try {
+                    int n = inflater.inflate(b, off, len);
+                    if(n > 0) {
+                        return n;
+                    }
+                }
+                catch(DataFormatException dfe) {
+                    throw new IOException("Corrupt compressed data", dfe);
+                }
+                if(!inflater.needsInput()) {
+                    throw new IOException("Corrupt compressed data");
+                }
+            }
+            if(eof || !readFrame()) {
+                return -1;
+            }
+        }
+    }
+
+    // read the next frame header, and for a deflated frame its payload
+    // return false at end of file before a frame
+    private boolean readFrame() throws IOException {
+        int n = in.readNBytes(header, 0, header.length);
+        if(n == 0) {
+            eof = true;
+            return false;
+        }
+        if(n < header.length) {
+            throw new EOFException("Compressed stream truncated");
+        }
+        int length = ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+        if(header[0] == CompressedOutputStream.RAW) {
+            rawRemaining = length;
+        }
+        else if(header[0] == CompressedOutputStream.DEFLATED) {
+            if(in.readNBytes(payload, 0, length) < length) {
+                throw new EOFException("Compressed stream truncated");
+            }
+            inflater.setInput(payload, 0, length);
+        }
+        else {
+            throw new IOException("Unknown compressed frame type " + header[0]);
+        }
+        return true;
+    }
+
+    public int available() throws IOException {
+        return rawRemaining > 0 ? Math.min(rawRemaining, in.available()) : 0;
+    }
+
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+}
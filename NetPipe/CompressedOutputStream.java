@@ -0,0 +1,107 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+// sending side of the deflate compression stage, between the forwarder and the encrypted stream
+// data is sent as frames: a 1-byte type, a 2-byte length (big endian) and the payload, which is
+// either raw data or the next piece of one raw deflate stream
+// every write is compressed with a sync flush and sent right away, so interactive data is not held
+// back waiting for more input
+//
+// data that does not compress (already compressed files, encrypted data) would only cost CPU time,
+// so the ratio is checked every WINDOW input bytes; when the output is more than MAXRATIO of the input,
+// the next BACKOFF bytes are sent raw, then compression is tried again. the deflate stream carries on
+// across raw frames, both sides keep their dictionary
+public class CompressedOutputStream extends FilterOutputStream {
+
+    static final int RAW = 0;
+    static final int DEFLATED = 1;
+    static final int HEADERBYTES = 3;
+    static final int MAXFRAME = 0xffff;
+    static final int WINDOW = 64 * 1024;
+    static final double MAXRATIO = 0.9;
+    static final long BACKOFF = 1024 * 1024;
+
+    private Deflater deflater = new Deflater(Deflater.BEST_SPEED, true); // favours throughput over ratio
+    private byte[] deflated = new byte[1024];
+    private byte[] frame = new byte[HEADERBYTES + MAXFRAME];
+    private boolean compressing = true;
+    private long windowIn = 0;
+    private long windowOut = 0;
+    private long rawSent = 0;
+    private boolean closed = false;
+
+    public CompressedOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return;
+        }
+        if(!compressing) {
+            writeFrames(RAW, b, off, len);
+            rawSent += len;
+            if(rawSent >= BACKOFF) {
+                compressing = true;
+            }
+            return;
+        }
+        deflater.setInput(b, off, len);
+        int total = 0;
+        while(true) {
+            int n = deflater.deflate(deflated, total, deflated.length - total, Deflater.SYNC_FLUSH);
+            total += n;
+            if(total < deflated.length) {
+                break; // the flush is complete when the output did not fill the buffer
+            }
+            deflated = Arrays.copyOf(deflated, 2 * deflated.length);
+        }
+        writeFrames(DEFLATED, deflated, 0, total);
+        windowIn += len;
+        windowOut += total;
+        if(windowIn >= WINDOW) {
+            if(windowOut > windowIn * MAXRATIO) {
+                compressing = false;
+                rawSent = 0;
+            }
+            windowIn = 0;
+            windowOut = 0;
+        }
+    }
+
+    // send data as frames of at most MAXFRAME bytes, each with one write to the stream below
+    private void writeFrames(int type, byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            int n = Math.min(len, MAXFRAME);
+            frame[0] = (byte) type;
+            frame[1] = (byte) (n >> 8);
+            frame[2] = (byte) n;
+            System.arraycopy(b, off, frame, HEADERBYTES, n);
+            out.write(frame, 0, HEADERBYTES + n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    // true while data is being compressed, false while it is sent raw because it did not compress
+    public boolean isCompressing() {
+        return compressing;
+    }
+
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        deflater.end();
+        flush();
+        out.close();
+    }
+}
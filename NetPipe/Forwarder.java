@@ -1,40 +1,274 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // class to forward (binary) data between two pairs of Input/Outputstreams
 public class Forwarder {
 
+    // buffer bytes held by each active connection, keyed by the name of the thread that forwards it
+    private static ConcurrentHashMap<String, AtomicInteger> footprints = new ConcurrentHashMap<>();
+
     // Thread class to switch data between an InputStream and an OutputStream
     // switch until end of file on InputStream
-    // if a socket is given as argument, shut down output to the socket after end of file
+    // if a socket is given as argument, or closeOutput is set, close the output stream after end of file,
+    // and shut down output to the socket
+    // the buffer comes from the shared heap BufferPool and adapts its size to the traffic
+    // with an IntegrityTrailer, the sending side frames the data in records and writes a trailer record
+    // at end of file, and the receiving side takes the data out of its records and checks the trailer
     private static class StreamForwarder implements Runnable {
         private InputStream input;
         private OutputStream output;
         private Socket shutdownSocket = null;
+        private boolean closeOutput = false;
+        private AtomicInteger footprint;
+        private Metrics.Counter counter;
+        private IntegrityTrailer sendTrailer = null;
+        private IntegrityTrailer checkTrailer = null;
 
-        private static int BUFFERSIZE = 1024;
-
-        StreamForwarder(InputStream inputStream, OutputStream outputStream, Socket socket) {
+        StreamForwarder(InputStream inputStream, OutputStream outputStream, Socket socket, AtomicInteger footprint, Metrics.Counter counter) {
             this.input = inputStream;
             this.output = outputStream;
             this.shutdownSocket = socket;
+            this.closeOutput = socket != null;
+            this.footprint = footprint;
+            this.counter = counter;
+        }
+
+        StreamForwarder(InputStream inputStream, OutputStream outputStream, boolean closeOutput, AtomicInteger footprint, Metrics.Counter counter) {
+            this.input = inputStream;
+            this.output = outputStream;
+            this.closeOutput = closeOutput;
+            this.footprint = footprint;
+            this.counter = counter;
         }
 
-        StreamForwarder(InputStream inputStream, OutputStream outputStream) {
+        StreamForwarder(InputStream inputStream, OutputStream outputStream, AtomicInteger footprint, Metrics.Counter counter) {
             this.input = inputStream;
             this.output = outputStream;
+            this.footprint = footprint;
+            this.counter = counter;
+        }
+
+        // digest the data read and write a trailer after it
+        void sendTrailer(IntegrityTrailer trailer) {
+            this.sendTrailer = trailer;
+        }
+
+        // digest the data written and check the trailer at the end of the input
+        void checkTrailer(IntegrityTrailer trailer) {
+            this.checkTrailer = trailer;
+        }
+
+        public void run() {
+            AdaptiveBuffer adaptive = new AdaptiveBuffer(BufferPool.HEAP, footprint);
+            try {
+                if (checkTrailer != null) {
+                    copyChecked(adaptive);
+                }
+                else {
+                    copy(adaptive);
+                }
+                if (sendTrailer != null) {
+                    output.write(sendTrailer.getTrailerRecord());
+                }
+            } catch (IOException ex) {
+                System.err.println("Forwarder error in " + Thread.currentThread().getName());
+                Metrics.recordFailure("forwarder: " + ex.getClass().getSimpleName());
+            } catch (GeneralSecurityException gse) {
+                System.err.println("Integrity trailer error in " + Thread.currentThread().getName());
+                Metrics.recordFailure("integrity: " + gse.getClass().getSimpleName());
+            }
+            adaptive.release();
+            if (this.closeOutput) {
+                try {
+                    // lets stacked streams finish (e.g. the end-of-stream record, or CLOSE of a MuxStream);
+                    // the socket itself is only half-closed, see HalfCloseOutputStream
+                    this.output.close();
+                } catch (IOException e) {}
+            }
+            if (this.shutdownSocket != null) {
+                try {
+                    this.shutdownSocket.shutdownOutput();
+                } catch (IOException e) {}
+            }
+        }
+
+        // forward until end of file
+        // if there is a trailer to send, what is read is digested and goes out as a data record, the data
+        // read after room for the header so that the record is written at once
+        private void copy(AdaptiveBuffer adaptive) throws IOException {
+            int header = sendTrailer != null ? IntegrityTrailer.HEADERBYTES : 0;
+            int nread;
+            ByteBuffer buf = adaptive.buffer();
+            while (-1 != (nread = input.read(buf.array(), buf.arrayOffset() + header, buf.capacity() - header))) {
+                if (nread == 0) {
+                    continue;
+                }
+                if (sendTrailer != null) {
+                    ByteBuffer.wrap(buf.array(), buf.arrayOffset(), header).putInt(nread);
+                    sendTrailer.update(buf.array(), buf.arrayOffset() + header, nread);
+                }
+                ForwarderStallEvent stall = new ForwarderStallEvent();
+                stall.begin();
+                output.write(buf.array(), buf.arrayOffset(), header + nread);
+                stalled(stall, counter, nread);
+                counter.add(nread);
+                adaptive.record(nread);
+                buf = adaptive.buffer();
+            }
+        }
+
+        // the receiving side of copy with a trailer: the data of each record is written out as it is read,
+        // and the trailer record must come last and match the data written
+        private void copyChecked(AdaptiveBuffer adaptive) throws IOException, GeneralSecurityException {
+            DataInputStream records = new DataInputStream(input);
+            boolean verified = false;
+            ByteBuffer buf = adaptive.buffer();
+            while (true) {
+                int length;
+                try {
+                    length = records.readInt();
+                }
+                catch (EOFException eofe) {
+                    break;  // no trailer
+                }
+                if (length == 0) {
+                    byte[] trailer = new byte[IntegrityTrailer.TRAILERBYTES];
+                    records.readFully(trailer);
+                    if (records.read() != -1) {
+                        throw new IOException("Data after integrity trailer");
+                    }
+                    verified = checkTrailer.verify(trailer);
+                    break;
+                }
+                if (length < 0) {
+                    throw new IOException("Bad integrity record length");
+                }
+                while (length > 0) {
+                    int nread = records.read(buf.array(), buf.arrayOffset(), Math.min(length, buf.capacity()));
+                    if (nread == -1) {
+                        throw new EOFException("Integrity record cut short");
+                    }
+                    ForwarderStallEvent stall = new ForwarderStallEvent();
+                    stall.begin();
+                    output.write(buf.array(), buf.arrayOffset(), nread);
+                    stalled(stall, counter, nread);
+                    checkTrailer.update(buf.array(), buf.arrayOffset(), nread);
+                    counter.add(nread);
+                    adaptive.record(nread);
+                    buf = adaptive.buffer();
+                    length -= nread;
+                }
+            }
+            if (verified) {
+                System.err.printf("Integrity verified in %s: %d bytes, SHA-256 %s\n", Thread.currentThread().getName(), checkTrailer.getCount(), checkTrailer.getEncodedDigest());
+            }
+            else {
+                System.err.println("Integrity check failed in " + Thread.currentThread().getName());
+                Metrics.recordFailure("integrity: check failed");
+            }
+        }
+    }
+
+    // record a write that took longer than the ForwarderStallEvent threshold, if a flight recording asks for it
+    // with no recording, the event is never committed and the JIT removes it
+    private static void stalled(ForwarderStallEvent stall, Metrics.Counter counter, int bytes) {
+        stall.end();
+        if(stall.shouldCommit()) {
+            stall.connection = counter.getConnection();
+            stall.direction = counter.getDirection();
+            stall.bytes = bytes;
+            stall.commit();
+        }
+    }
+
+    // bottom of the network output stack in forwardSession, and the output to a forwarded TCP connection
+    // close() shuts down output to the socket instead of closing it, so the other direction keeps working
+    // with a BandwidthScheduler flow, every write waits for its bandwidth, a quantum at a time
+    private static class HalfCloseOutputStream extends FilterOutputStream {
+        private Socket socket;
+        private BandwidthScheduler.Flow flow;
+
+        HalfCloseOutputStream(Socket socket) throws IOException {
+            this(socket, null);
+        }
+
+        HalfCloseOutputStream(Socket socket, BandwidthScheduler.Flow flow) throws IOException {
+            super(socket.getOutputStream());
+            this.socket = socket;
+            this.flow = flow;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (flow == null) {
+                out.write(b, off, len);
+                return;
+            }
+            while (len > 0) {
+                int n = Math.min(len, BandwidthScheduler.QUANTUM);
+                flow.acquire(n);
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        public void close() throws IOException {
+            flush();
+            if (!socket.isOutputShutdown()) {
+                socket.shutdownOutput();
+            }
+        }
+    }
+
+    // Thread class to switch data between a ReadableByteChannel and a WritableByteChannel
+    // same as StreamForwarder, but with a direct buffer from the shared direct BufferPool, for the buffer-based cipher path
+    private static class ChannelForwarder implements Runnable {
+        private ReadableByteChannel input;
+        private WritableByteChannel output;
+        private Socket shutdownSocket = null;
+        private AtomicInteger footprint;
+        private Metrics.Counter counter;
+
+        ChannelForwarder(ReadableByteChannel inputChannel, WritableByteChannel outputChannel, Socket socket, AtomicInteger footprint, Metrics.Counter counter) {
+            this.input = inputChannel;
+            this.output = outputChannel;
+            this.shutdownSocket = socket;
+            this.footprint = footprint;
+            this.counter = counter;
         }
 
         public void run() {
-            byte[] buf = new byte[BUFFERSIZE];
+            AdaptiveBuffer adaptive = new AdaptiveBuffer(BufferPool.DIRECT, footprint);
             int nread;
             try {
-                while (-1 != (nread = input.read(buf, 0, BUFFERSIZE))) {
-                    output.write(buf, 0, nread);
+                ByteBuffer buf = adaptive.buffer();
+                while (-1 != (nread = input.read(buf))) {
+                    buf.flip();
+                    ForwarderStallEvent stall = new ForwarderStallEvent();
+                    stall.begin();
+                    while (buf.hasRemaining()) {
+                        output.write(buf);
+                    }
+                    stalled(stall, counter, nread);
+                    counter.add(nread);
+                    adaptive.record(nread);
+                    buf = adaptive.buffer();
+                    buf.clear();
                 }
             } catch (IOException ex) {
                 System.err.println("Forwarder error in " + Thread.currentThread().getName());
+                Metrics.recordFailure("forwarder: " + ex.getClass().getSimpleName());
             }
+            adaptive.release();
             if (this.shutdownSocket != null) {
                 try {
                     this.shutdownSocket.shutdownOutput();
@@ -44,9 +278,59 @@ public class Forwarder {
     }
 
     // start two forwarder threads, one in each direction, and wait for them to complete
+    // when called from a virtual thread (multi-connection server), the forwarders are virtual threads too
+    // the bytes of each direction are counted in Metrics, under the name of the calling thread
     public static void forwardStreams(InputStream sysinput, OutputStream sysoutput, InputStream netinput, OutputStream netoutput, Socket socket) {
-        Thread sysreader = new Thread(new StreamForwarder(sysinput, netoutput, socket), "sysreader");
-        Thread syswriter = new Thread(new StreamForwarder(netinput, sysoutput), "syswriter");
+        forwardStreams(sysinput, sysoutput, netinput, netoutput, socket, null, null);
+    }
+
+    // same as above, with end-to-end integrity trailers: sent covers the data to the network, received the
+    // data from it (see IntegrityTrailer)
+    private static void forwardStreams(InputStream sysinput, OutputStream sysoutput, InputStream netinput, OutputStream netoutput, Socket socket, IntegrityTrailer sent, IntegrityTrailer received) {
+        Thread.Builder builder = Thread.currentThread().isVirtual() ? Thread.ofVirtual() : Thread.ofPlatform();
+        String connection = Thread.currentThread().getName();
+        AtomicInteger footprint = new AtomicInteger();
+        footprints.put(connection, footprint);
+        Metrics.Connection metrics = Metrics.openConnection(connection, socket == null ? null : socket.getRemoteSocketAddress());
+        StreamForwarder sender = new StreamForwarder(sysinput, netoutput, socket, footprint, metrics.getSent());
+        StreamForwarder receiver = new StreamForwarder(netinput, sysoutput, footprint, metrics.getReceived());
+        if (sent != null) {
+            sender.sendTrailer(sent);
+            receiver.checkTrailer(received);
+        }
+        Thread sysreader = builder.name("sysreader").unstarted(sender);
+        Thread syswriter = builder.name("syswriter").unstarted(receiver);
+
+        sysreader.start();
+        syswriter.start();
+        try {
+            sysreader.join();
+            syswriter.join();
+        } catch (Exception ex) {}
+        footprints.remove(connection);
+        Metrics.closeConnection(metrics);
+    }
+
+    // same as forwardStreams, but between the system streams and one stream of a Multiplexer
+    // end of file on sysinput closes the stream's output, which sends CLOSE to the peer
+    public static void forwardStream(InputStream sysinput, OutputStream sysoutput, MuxStream stream) {
+        forwardStream(sysinput, sysoutput, false, null, stream);
+    }
+
+    // same as above, but between a TCP connection (port forwarding) and a stream
+    // end of file in either direction is passed on as a half close
+    public static void forwardStream(Socket socket, MuxStream stream) throws IOException {
+        forwardStream(socket.getInputStream(), new HalfCloseOutputStream(socket), true, socket.getRemoteSocketAddress(), stream);
+    }
+
+    private static void forwardStream(InputStream sysinput, OutputStream sysoutput, boolean closeSysoutput, SocketAddress remote, MuxStream stream) {
+        Thread.Builder builder = Thread.currentThread().isVirtual() ? Thread.ofVirtual() : Thread.ofPlatform();
+        String connection = Thread.currentThread().getName();
+        AtomicInteger footprint = new AtomicInteger();
+        footprints.put(connection, footprint);
+        Metrics.Connection metrics = Metrics.openConnection(connection, remote);
+        Thread sysreader = builder.name("sysreader").unstarted(new StreamForwarder(sysinput, stream.getOutputStream(), true, footprint, metrics.getSent()));
+        Thread syswriter = builder.name("syswriter").unstarted(new StreamForwarder(stream.getInputStream(), sysoutput, closeSysoutput, footprint, metrics.getReceived()));
 
         sysreader.start();
         syswriter.start();
@@ -54,5 +338,124 @@ public class Forwarder {
             sysreader.join();
             syswriter.join();
         } catch (Exception ex) {}
+        footprints.remove(connection);
+        Metrics.closeConnection(metrics);
+    }
+
+    // same as forwardStreams, but for channels
+    public static void forwardChannels(ReadableByteChannel sysinput, WritableByteChannel sysoutput, ReadableByteChannel netinput, WritableByteChannel netoutput, Socket socket) {
+        Thread.Builder builder = Thread.currentThread().isVirtual() ? Thread.ofVirtual() : Thread.ofPlatform();
+        String connection = Thread.currentThread().getName();
+        AtomicInteger footprint = new AtomicInteger();
+        footprints.put(connection, footprint);
+        Metrics.Connection metrics = Metrics.openConnection(connection, socket == null ? null : socket.getRemoteSocketAddress());
+        Thread sysreader = builder.name("sysreader").unstarted(new ChannelForwarder(sysinput, netoutput, socket, footprint, metrics.getSent()));
+        Thread syswriter = builder.name("syswriter").unstarted(new ChannelForwarder(netinput, sysoutput, null, footprint, metrics.getReceived()));
+
+        sysreader.start();
+        syswriter.start();
+        try {
+            sysreader.join();
+            syswriter.join();
+        } catch (Exception ex) {}
+        footprints.remove(connection);
+        Metrics.closeConnection(metrics);
+    }
+
+    // buffer bytes currently held by each active connection
+    public static Map<String, Integer> getBufferFootprints() {
+        Map<String, Integer> snapshot = new HashMap<>();
+        for(Map.Entry<String, AtomicInteger> entry : footprints.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        }
+        return snapshot;
+    }
+
+    // forward between the system streams and an encrypted socket
+    // with the gcm transport, data goes through the record layer (RecordOutputStream/RecordInputStream)
+    // with the ctr transport, cipher path "stream" wraps the socket streams in CipherInputStream/CipherOutputStream,
+    // "buffer" encrypts and decrypts with direct ByteBuffers on the socket channel, and "parallel" is the stream path
+    // with large chunks split over several cores (ParallelCtr)
+    // with deflate compression, CompressedOutputStream/CompressedInputStream sit between the system streams and
+    // the encrypted streams; the buffer path has no compression stage, so a compressed ctr session uses the stream path
+    // with the integrity check, each direction ends with an IntegrityTrailer, which only the stream path writes and
+    // checks; an IOException is thrown if the data from the network could not be verified
+    // a session with a bandwidth limit (a BandwidthScheduler flow) uses the stream path too
+    public static void forwardSession(InputStream sysinput, OutputStream sysoutput, Socket socket, SessionCipher sessionCipher, SessionParameters parameters) throws IOException, GeneralSecurityException {
+        forwardSession(sysinput, sysoutput, socket, null, sessionCipher, parameters);
+    }
+
+    // same as above, but data from the network is read from netinput instead of the socket
+    // (null means the socket), for a client whose pipelined handshake is finished by the first read
+    public static void forwardSession(InputStream sysinput, OutputStream sysoutput, Socket socket, InputStream netinput, SessionCipher sessionCipher, SessionParameters parameters) throws IOException, GeneralSecurityException {
+        boolean client = parameters.isClient();
+        InputStream socketinput = netinput != null ? netinput : socket.getInputStream();
+        IntegrityTrailer sent = null;
+        IntegrityTrailer received = null;
+        if(parameters.getIntegrity().equals(SessionParameters.SHA256)) {
+            sent = new IntegrityTrailer(sessionCipher, client);
+            received = new IntegrityTrailer(sessionCipher, !client);
+        }
+        if(parameters.getTransport().equals(SessionParameters.GCM)) {
+            OutputStream netoutput = sessionCipher.openRecordOutputStream(new HalfCloseOutputStream(socket, parameters.getFlow()), client, parameters.getRecordSize());
+            InputStream recordinput = sessionCipher.openRecordInputStream(socketinput, !client);
+            forwardStreams(sysinput, sysoutput, compressInput(recordinput, parameters), compressOutput(netoutput, parameters), socket, sent, received);
+        }
+        else if(parameters.getCipherPath().equals("buffer") && socket.getChannel() != null && parameters.getCompression().equals(SessionParameters.NONE) && sent == null && parameters.getFlow() == null) {
+            WritableByteChannel netoutput = sessionCipher.openEncryptedChannel(socket.getChannel());
+            ReadableByteChannel channelinput = sessionCipher.openDecryptedChannel(netinput != null ? Channels.newChannel(netinput) : socket.getChannel());
+            forwardChannels(Channels.newChannel(sysinput), Channels.newChannel(sysoutput), channelinput, netoutput, socket);
+        }
+        else {
+            OutputStream netoutput = openCtrOutput(sessionCipher, new HalfCloseOutputStream(socket, parameters.getFlow()), parameters);
+            InputStream cipherinput = openCtrInput(sessionCipher, socketinput, parameters);
+            forwardStreams(sysinput, sysoutput, compressInput(cipherinput, parameters), compressOutput(netoutput, parameters), socket, sent, received);
+        }
+        if(received != null && !received.isVerified()) {
+            throw new IOException("Integrity check failed");
+        }
+    }
+
+    // a Multiplexer over an encrypted socket, on the same streams as forwardSession uses (the ctr stream path
+    // for ctr, since frames are written as streams), and with its reader thread started
+    // closing the multiplexer half-closes the socket
+    public static Multiplexer openMultiplexer(Socket socket, SessionCipher sessionCipher, SessionParameters parameters) throws IOException, GeneralSecurityException {
+        boolean client = parameters.isClient();
+        OutputStream netoutput;
+        InputStream netinput;
+        if(parameters.getTransport().equals(SessionParameters.GCM)) {
+            netoutput = sessionCipher.openRecordOutputStream(new HalfCloseOutputStream(socket, parameters.getFlow()), client, parameters.getRecordSize());
+            netinput = sessionCipher.openRecordInputStream(socket.getInputStream(), !client);
+        }
+        else {
+            netoutput = openCtrOutput(sessionCipher, new HalfCloseOutputStream(socket, parameters.getFlow()), parameters);
+            netinput = openCtrInput(sessionCipher, socket.getInputStream(), parameters);
+        }
+        Multiplexer multiplexer = new Multiplexer(compressInput(netinput, parameters), compressOutput(netoutput, parameters), client);
+        multiplexer.start();
+        return multiplexer;
+    }
+
+    // the ctr stream path; cipher path "parallel" encrypts and decrypts large chunks on the common ForkJoinPool
+    private static OutputStream openCtrOutput(SessionCipher sessionCipher, OutputStream os, SessionParameters parameters) throws GeneralSecurityException {
+        if(parameters.getCipherPath().equals("parallel")) {
+            return sessionCipher.openParallelOutputStream(os);
+        }
+        return sessionCipher.openEncryptedOutputStream(os);
+    }
+
+    private static InputStream openCtrInput(SessionCipher sessionCipher, InputStream is, SessionParameters parameters) throws GeneralSecurityException {
+        if(parameters.getCipherPath().equals("parallel")) {
+            return sessionCipher.openParallelInputStream(is);
+        }
+        return sessionCipher.openDecryptedInputStream(is);
+    }
+
+    private static InputStream compressInput(InputStream input, SessionParameters parameters) {
+        return parameters.getCompression().equals(SessionParameters.DEFLATE) ? new CompressedInputStream(input) : input;
+    }
+
+    private static OutputStream compressOutput(OutputStream output, SessionParameters parameters) {
+        return parameters.getCompression().equals(SessionParameters.DEFLATE) ? new CompressedOutputStream(output) : output;
     }
 }
\ No newline at end of file
@@ -0,0 +1,29 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+// Java Flight Recorder event for a forwarder write that blocked
+// only writes that take longer than the threshold (20 ms unless the recording says otherwise) are recorded,
+// so a recording shows where a slow tunnel waits: on the network, or on a local output like stdout
+@Name("netpipe.ForwarderStall")
+@Label("Forwarder Stall")
+@Category("NetPipe")
+@Description("A write by a forwarder thread that blocked, towards the network (sent) or the local output (received)")
+@Threshold("20 ms")
+@StackTrace(false)
+class ForwarderStallEvent extends jdk.jfr.Event {
+
+    @Label("Connection")
+    String connection;
+
+    @Label("Direction")
+    String direction;
+
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+}
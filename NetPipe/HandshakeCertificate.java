@@ -13,6 +13,9 @@ import javax.naming.ldap.Rdn;
 public class HandshakeCertificate {
 
     X509Certificate cert;
+    private String cn = null;       // subject fields, extracted on first use
+    private String email = null;
+    private boolean namesParsed = false;
 
     // constructor to create a certificate from data read on an input stream
     // the data is DER-encoded, in binary or Base64 encoding (PEM format)
@@ -45,32 +48,36 @@ public class HandshakeCertificate {
 
     // return CN (Common Name) of subject
     public String getCN() {
-        // got a lot of help from this forum:
-        // https://stackoverflow.com/questions/2914521/how-to-extract-cn-from-x509certificate-in-java
+        parseNames();
+        return cn;
+    }
 
-        String dn = cert.getSubjectX500Principal().toString();
-        try {
-            LdapName ln = new LdapName(dn);
-            for(Rdn rdn : ln.getRdns()) {
-                if(rdn.getType().equals("CN")) {
-                    return rdn.getValue().toString();
-                }
-            }
+    // return email address of subject
+    public String getEmail() {
+        parseNames();
+        return email;
+    }
 
-            return null;
-        }
-        catch(InvalidNameException ine) {
-            return null;
+    // extract CN and email address from the subject once, they are asked for on every connection
+    private synchronized void parseNames() {
+        if(namesParsed) {
+            return;
         }
+        cn = subjectField("CN");
+        email = subjectField("EMAILADDRESS");
+        namesParsed = true;
     }
 
-    // return email address of subject
-    public String getEmail() {
+    // return the value of a field of the subject
+    private String subjectField(String type) {
+        // got a lot of help from this forum:
+        // https://stackoverflow.com/questions/2914521/how-to-extract-cn-from-x509certificate-in-java
+
         String dn = cert.getSubjectX500Principal().toString();
         try {
             LdapName ln = new LdapName(dn);
             for(Rdn rdn : ln.getRdns()) {
-                if(rdn.getType().equals("EMAILADDRESS")) {
+                if(rdn.getType().equals(type)) {
                     return rdn.getValue().toString();
                 }
             }
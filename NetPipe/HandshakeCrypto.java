@@ -3,6 +3,8 @@ import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import javax.crypto.BadPaddingException;
@@ -12,6 +14,9 @@ import javax.crypto.NoSuchPaddingException;
 
 public class HandshakeCrypto {
 
+    // signature algorithm of handshake version 2 (PKCS#1 v1.5 with SHA-256)
+    static final String SIGNATURE = "SHA256withRSA";
+
     boolean certificate;
     PublicKey pubkey;
     PrivateKey prikey;
@@ -66,4 +71,24 @@ public class HandshakeCrypto {
     	
         return ciphertext;
     }
+
+    // sign the inputs, one after the other, with the private key (handshake version 2)
+    public byte[] sign(byte[]... inputs) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Signature signature = Signature.getInstance(SIGNATURE);
+        signature.initSign(prikey);
+        for(byte[] input : inputs) {
+            signature.update(input);
+        }
+        return signature.sign();
+    }
+
+    // check a signature over the inputs with the public key of the certificate
+    public boolean verify(byte[] signed, byte[]... inputs) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        Signature signature = Signature.getInstance(SIGNATURE);
+        signature.initVerify(pubkey);
+        for(byte[] input : inputs) {
+            signature.update(input);
+        }
+        return signature.verify(signed);
+    }
 }
@@ -10,11 +10,30 @@ public class HandshakeDigest {
         md = MessageDigest.getInstance("SHA256");
     }
 
+    private HandshakeDigest(MessageDigest md) {
+        this.md = md;
+    }
+
+    // a digest that continues from the data given to this one so far, independent of it
+    public HandshakeDigest copy() {
+        try {
+            return new HandshakeDigest((MessageDigest) md.clone());
+        }
+        catch(CloneNotSupportedException cnse) {
+            throw new IllegalStateException("SHA-256 digest can't be copied", cnse);
+        }
+    }
+
     // update digest with input data
     public void update(byte[] input) {
         md.update(input);
     }
 
+    // update digest with len bytes of input, starting at offset
+    public void update(byte[] input, int offset, int len) {
+        md.update(input, offset, len);
+    }
+
     // compute final digest
     public byte[] digest() {
         byte[] digest = md.digest();
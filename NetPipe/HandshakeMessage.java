@@ -1,17 +1,26 @@
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ObjectOutputStream;
-import java.io.ObjectInputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.Properties;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 // a handshake message is represented as a set of parameters -- <key, value> pairs
-// extends Properties class
-public class HandshakeMessage extends Properties {
+// a value is either text or raw bytes (certificates, key shares, ciphertexts, signatures)
+//
+// binary encoding, all integers big endian:
+//   version (1) | message type code (1) | number of parameters (2)
+//   then for each parameter: name length (1) | name (UTF-8) | kind (1) | value length (2) | value
+// parameters are encoded in the order they were put, and a decoded message keeps the order it was
+// received in, so encoding a received message gives the same bytes back (both sides hash the messages)
+public class HandshakeMessage {
 
     // constants to represent message type
     public enum MessageType {
@@ -19,7 +28,8 @@ public class HandshakeMessage extends Properties {
         SERVERHELLO    (2),
         SESSION        (3),
         CLIENTFINISHED (4),
-        SERVERFINISHED (5);
+        SERVERFINISHED (5),
+        SESSIONTICKET  (6);
 
         private final int code; // integer code representing message type
         MessageType(int code) {
@@ -29,9 +39,26 @@ public class HandshakeMessage extends Properties {
         public int getCode() {
             return this.code;
         }
+
+        // message type for a code, or null if there is none
+        public static MessageType fromCode(int code) {
+            for(MessageType type : values()) {
+                if(type.code == code) {
+                    return type;
+                }
+            }
+            return null;
+        }
     }
     static final int LENGTHBYTES = 2; // width of length field in bytes
+    static final int MAXLENGTH = 0xffff; // largest encoded message
+    static final int VERSION = 1; // version of the encoding
+    static final byte TEXT = 0; // kinds of parameter values
+    static final byte BINARY = 1;
+
     private MessageType messageType;
+    private LinkedHashMap<String, byte[]> parameters = new LinkedHashMap<>();
+    private LinkedHashMap<String, Byte> kinds = new LinkedHashMap<>();
 
     public HandshakeMessage(MessageType messageType) {
         this.messageType = messageType;
@@ -41,73 +68,207 @@ public class HandshakeMessage extends Properties {
         return this.messageType;
     }
 
-    // get the value of a parameter
+    // get the value of a text parameter, null if there is no such text parameter
     public String getParameter(String param) {
-        return this.getProperty(param);
+        Byte kind = kinds.get(param);
+        if(kind == null || kind != TEXT) {
+            return null;
+        }
+        return new String(parameters.get(param), StandardCharsets.UTF_8);
     }
 
-    // assign a parameter
+    // assign a text parameter
     public void putParameter(String param, String value) {
-        this.put(param, value);
+        put(param, TEXT, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // get the value of a binary parameter, null if there is no such binary parameter
+    public byte[] getBinaryParameter(String param) {
+        Byte kind = kinds.get(param);
+        if(kind == null || kind != BINARY) {
+            return null;
+        }
+        return parameters.get(param).clone();
+    }
+
+    // assign a binary parameter
+    public void putBinaryParameter(String param, byte[] value) {
+        put(param, BINARY, value.clone());
+    }
+
+    private void put(String param, byte kind, byte[] value) {
+        if(param.getBytes(StandardCharsets.UTF_8).length > 0xff) {
+            throw new IllegalArgumentException("Parameter name too long: " + param);
+        }
+        parameters.put(param, value);
+        kinds.put(param, kind);
     }
 
-    // Q&D encoding and decoding of message as Java object
-    // encode a message into a byte array, 
-    // by writing the object to an ObjectOutputStream connected to ByteArrayOutputStream
+    // number of bytes the message takes when encoded
+    public int getEncodedLength() {
+        int length = 4;
+        for(Map.Entry<String, byte[]> entry : parameters.entrySet()) {
+            length += 1 + entry.getKey().getBytes(StandardCharsets.UTF_8).length + 1 + 2 + entry.getValue().length;
+        }
+        return length;
+    }
+
+    // encode the message into a buffer, which must have getEncodedLength() bytes left
+    public void encode(ByteBuffer buffer) throws IOException {
+        buffer.put((byte) VERSION);
+        buffer.put((byte) messageType.getCode());
+        buffer.putShort((short) parameters.size());
+        for(Map.Entry<String, byte[]> entry : parameters.entrySet()) {
+            byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = entry.getValue();
+            if(value.length > MAXLENGTH) {
+                throw new IOException("Parameter too long: " + entry.getKey());
+            }
+            buffer.put((byte) name.length);
+            buffer.put(name);
+            buffer.put(kinds.get(entry.getKey()));
+            buffer.putShort((short) value.length);
+            buffer.put(value);
+        }
+    }
+
+    // encode the message into a byte array
     public byte[] getBytes() throws IOException {
-        ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
-        ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteOutputStream);
-        objectOutputStream.writeObject(this);
-        byte[] bytes = byteOutputStream.toByteArray();
-        return bytes;
+        int length = getEncodedLength();
+        if(length > MAXLENGTH) {
+            throw new IOException("Handshake message too long");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        encode(buffer);
+        return buffer.array();
+    }
+
+    // decode a message from all remaining bytes of a buffer
+    // anything that does not follow the encoding exactly is rejected with an IOException
+    public static HandshakeMessage decode(ByteBuffer buffer) throws IOException {
+        try {
+            int version = buffer.get() & 0xff;
+            if(version != VERSION) {
+                throw new IOException("Unsupported handshake message version " + version);
+            }
+            MessageType type = MessageType.fromCode(buffer.get() & 0xff);
+            if(type == null) {
+                throw new IOException("Unknown handshake message type");
+            }
+            HandshakeMessage message = new HandshakeMessage(type);
+            int count = buffer.getShort() & 0xffff;
+            for(int i = 0; i < count; i++) {
+                byte[] name = new byte[buffer.get() & 0xff];
+                buffer.get(name);
+                byte kind = buffer.get();
+                if(kind != TEXT && kind != BINARY) {
+                    throw new IOException("Unknown parameter kind");
+                }
+                byte[] value = new byte[buffer.getShort() & 0xffff];
+                buffer.get(value);
+                String param = new String(name, StandardCharsets.UTF_8);
+                if(message.parameters.containsKey(param)) {
+                    throw new IOException("Duplicate parameter " + param);
+                }
+                message.put(param, kind, value);
+            }
+            if(buffer.hasRemaining()) {
+                throw new IOException("Trailing bytes after handshake message");
+            }
+            return message;
+        }
+        catch(BufferUnderflowException bue) {
+            throw new IOException("Truncated handshake message");
+        }
     }
 
-    // decode a byte array into a message, 
-    // by feeding the byte array into a ByteArrayInputStream and connecting an ObjectInputStream to it
-    public static HandshakeMessage fromBytes(byte[] bytes) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream byteInputStream = new ByteArrayInputStream(bytes);
-        ObjectInputStream objectInputStream = new ObjectInputStream(byteInputStream);
-        HandshakeMessage message = (HandshakeMessage) objectInputStream.readObject();
-        return message;
+    // decode a byte array into a message
+    public static HandshakeMessage fromBytes(byte[] bytes) throws IOException {
+        return decode(ByteBuffer.wrap(bytes));
     }
 
     // send a handshake message on a socket
     // encode message as a byte array
-    // prepend the byte array with an integer (big endian) with the length of the string
+    // prepend the byte array with an unsigned short (big endian) with the length of the message
     public void send(Socket socket) throws IOException {
-        byte[] bytes = this.getBytes();
-        byte[] lengthBytes = new byte[LENGTHBYTES];
-        ByteBuffer lengthBuffer = ByteBuffer.wrap(lengthBytes); // big endian byte buffer with length (a short)
-        lengthBuffer.putShort(0, (short) bytes.length);
-        OutputStream output = socket.getOutputStream();
-        output.write(lengthBytes);
-        output.write(bytes);
+        send(socket.getOutputStream());
+    }
+
+    // send a handshake message on an output stream, for collecting several messages into one write
+    public void send(OutputStream output) throws IOException {
+        int length = getEncodedLength();
+        if(length > MAXLENGTH) {
+            throw new IOException("Handshake message too long");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTHBYTES + length);
+        buffer.putShort((short) length);
+        encode(buffer);
+        output.write(buffer.array());
+        output.flush();
+    }
+
+    // send a message that was encoded before (see getBytes), the same way as send
+    public static void send(Socket socket, byte[] encoded) throws IOException {
+        send(socket.getOutputStream(), encoded);
+    }
+
+    public static void send(OutputStream output, byte[] encoded) throws IOException {
+        if(encoded.length > MAXLENGTH) {
+            throw new IOException("Handshake message too long");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTHBYTES + encoded.length);
+        buffer.putShort((short) encoded.length);
+        buffer.put(encoded);
+        output.write(buffer.array());
         output.flush();
     }
 
+    // current time as sent in the Finished messages
+    public static byte[] timeStamp() {
+        DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        return LocalDateTime.now().format(dtf).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // true if a time stamp from a Finished message is within 10 seconds of the local time
+    public static boolean isFresh(byte[] timeStamp) {
+        try {
+            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+            LocalDateTime then = LocalDateTime.parse(new String(timeStamp, StandardCharsets.UTF_8), dtf);
+            return Math.abs(Duration.between(then, LocalDateTime.now()).getSeconds()) <= 10;
+        }
+        catch(DateTimeException dte) {
+            return false;
+        }
+    }
+
     // receive a handshake message on a socket
-    // read an integer (big endian), which gives the size of the message in bytes
+    // read an unsigned short (big endian), which gives the size of the message in bytes
     // then read the byte array and convert it to a message
-    public static HandshakeMessage recv(Socket socket) throws IOException, ClassNotFoundException {
+    public static HandshakeMessage recv(Socket socket) throws IOException {
+        return HandshakeMessage.fromBytes(recvBytes(socket));
+    }
+
+    // receive the encoded bytes of a handshake message, as they were sent, without decoding them
+    public static byte[] recvBytes(Socket socket) throws IOException {
         InputStream input = socket.getInputStream();
         byte[] lengthBytes = new byte[LENGTHBYTES];
-        int nread;
-
-        if (LENGTHBYTES != (nread = input.read(lengthBytes, 0, LENGTHBYTES))) {
-            throw new IOException("Error receiving message length");
-        }
+        readFully(input, lengthBytes, "Error receiving message length");
         ByteBuffer lengthBuffer = ByteBuffer.wrap(lengthBytes); // big endian byte buffer with length (a short)
-        int length = lengthBuffer.getShort();
+        int length = lengthBuffer.getShort() & 0xffff;
 
         byte[] buffer = new byte[length];
-        nread = 0;
-        while (nread < length) {
-            int n = input.read(buffer, nread, length-nread);
+        readFully(input, buffer, "Error receiving message");
+        return buffer;
+    }
+
+    // read exactly buffer.length bytes
+    private static void readFully(InputStream input, byte[] buffer, String error) throws IOException {
+        int nread = 0;
+        while (nread < buffer.length) {
+            int n = input.read(buffer, nread, buffer.length-nread);
             if (n < 0)
-                throw new IOException("Error receiving message");
+                throw new IOException(error);
             nread += n;
         }
-        HandshakeMessage message = HandshakeMessage.fromBytes(buffer);
-        return message;
     }
-};
\ No newline at end of file
+};
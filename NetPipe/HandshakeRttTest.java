@@ -0,0 +1,216 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Counts the round trips a handshake takes, by running client and server handshakes through a local
+ * proxy that delays every chunk of data by half a round-trip time in each direction.
+ * Reports, in round trips from the start of the client handshake:
+ *   - when the client is done with the handshake (server authenticated)
+ *   - when the first data byte from the client arrives at the server
+ */
+public class HandshakeRttTest {
+    static long RTTMILLIS = 400;
+    static String STOREPASS = "netpipetest";
+
+    static HandshakeCertificate certificate;
+    static byte[] privateKey;
+    static ServerCredentials credentials;
+
+    /* Self-signed certificate for both sides, made with keytool, and one warm-up handshake without delay */
+    @BeforeAll
+    public static void setUp() throws Exception {
+        Path dir = Files.createTempDirectory("netpipe-rtt");
+        Path store = dir.resolve("test.p12");
+        String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "netpipe", "-keyalg", "RSA", "-keysize", "2048",
+                                             "-dname", "CN=localhost", "-validity", "2", "-storetype", "PKCS12",
+                                             "-keystore", store.toString(), "-storepass", STOREPASS)
+            .redirectErrorStream(true).start();
+        process.getInputStream().readAllBytes();
+        assertEquals(0, process.waitFor());
+
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream is = Files.newInputStream(store)) {
+            keyStore.load(is, STOREPASS.toCharArray());
+        }
+        certificate = new HandshakeCertificate(keyStore.getCertificate("netpipe").getEncoded());
+        privateKey = ((PrivateKey) keyStore.getKey("netpipe", STOREPASS.toCharArray())).getEncoded();
+        credentials = new ServerCredentials(certificate, privateKey);
+        Files.delete(store);
+        Files.delete(dir);
+
+        measure(SessionParameters.RSA, false, 0);
+        measure(SessionParameters.RSA, true, 0);
+        measure(SessionParameters.ECDHE, false, 0);
+    }
+
+    @Test
+    public void testLockstepHandshakeTakesTwoRoundTrips() throws Exception {
+        double[] rtts = measure(SessionParameters.RSA, false, RTTMILLIS);
+
+        assertEquals(2, Math.round(rtts[0]));
+        /* ClientFinished and data go out after two round trips and arrive half a round trip later */
+        assertEquals(2, (long) rtts[1]);
+    }
+
+    @Test
+    public void testPipelinedHandshakeTakesOneRoundTrip() throws Exception {
+        double[] rtts = measure(SessionParameters.RSA, true, RTTMILLIS);
+
+        assertEquals(1, Math.round(rtts[0]));
+    }
+
+    @Test
+    public void testPipelinedDataArrivesBeforeOneRoundTrip() throws Exception {
+        double[] rtts = measure(SessionParameters.RSA, true, RTTMILLIS);
+
+        /* Data goes out with ClientHello, so it arrives after one trip in one direction */
+        assertEquals(0, (long) rtts[1]);
+    }
+
+    @Test
+    public void testEcdheHandshakeTakesOneRoundTrip() throws Exception {
+        double[] rtts = measure(SessionParameters.ECDHE, false, RTTMILLIS);
+
+        assertEquals(1, Math.round(rtts[0]));
+        assertEquals(1, (long) rtts[1]);
+    }
+
+    /* Run one handshake through a delay proxy, and send one data byte from the client
+     * Return { client handshake done, first data at server }, in round trips */
+    static double[] measure(String keyExchange, boolean pipelined, long rttMillis) throws Exception {
+        try (ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             DelayProxy proxy = new DelayProxy(serverSocket.getLocalPort(), rttMillis / 2)) {
+            AtomicLong dataArrived = new AtomicLong();
+            Thread server = new Thread(() -> {
+                try (Socket socket = serverSocket.accept()) {
+                    socket.setTcpNoDelay(true);
+                    SessionParameters parameters = new SessionParameters(false);
+                    SessionCipher sessionCipher = new ServerHandshake(socket, credentials, certificate, parameters).run();
+                    if (sessionCipher != null && sessionCipher.openDecryptedInputStream(socket.getInputStream()).read() == 'x') {
+                        dataArrived.set(System.nanoTime());
+                    }
+                } catch (Exception e) {
+                }
+            });
+            server.start();
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxy.getPort())) {
+                socket.setTcpNoDelay(true);
+                SessionParameters parameters = new SessionParameters(true);
+                parameters.setKeyExchange(keyExchange);
+                ClientHandshake handshake = new ClientHandshake(socket, certificate, certificate, privateKey, parameters);
+                if (pipelined) {
+                    handshake.setPipelined(certificate);
+                }
+                long start = System.nanoTime();
+                SessionCipher sessionCipher = handshake.run();
+                assertNotNull(sessionCipher);
+                OutputStream output = sessionCipher.openEncryptedOutputStream(socket.getOutputStream());
+                output.write('x');
+                output.flush();
+                assertTrue(handshake.finish());
+                long done = System.nanoTime();
+                server.join();
+                assertTrue(dataArrived.get() != 0);
+
+                double rttNanos = Math.max(rttMillis, 1) * 1e6;
+                double[] rtts = { (done - start) / rttNanos, (dataArrived.get() - start) / rttNanos };
+                if (rttMillis > 0) {
+                    System.out.printf("%s%s: handshake done after %.2f RTT, first data at server after %.2f RTT\n",
+                                      keyExchange, pipelined ? " pipelined" : "", rtts[0], rtts[1]);
+                }
+                return rtts;
+            }
+        }
+    }
+
+    /* Forwards one connection to a local port, delaying every chunk by a fixed time in each direction */
+    static class DelayProxy implements AutoCloseable {
+        private ServerSocket listener;
+        private long delayMillis;
+
+        DelayProxy(int targetPort, long delayMillis) throws IOException {
+            this.listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+            this.delayMillis = delayMillis;
+            Thread acceptor = new Thread(() -> {
+                try {
+                    Socket client = listener.accept();
+                    Socket target = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                    client.setTcpNoDelay(true);
+                    target.setTcpNoDelay(true);
+                    pipe(client, target);
+                    pipe(target, client);
+                } catch (IOException ioe) {
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return listener.getLocalPort();
+        }
+
+        /* One thread reads and time-stamps chunks, another writes each chunk when its delay has passed */
+        private void pipe(Socket from, Socket to) {
+            LinkedBlockingQueue<Object[]> queue = new LinkedBlockingQueue<>();
+            Thread reader = new Thread(() -> {
+                byte[] buf = new byte[16384];
+                try {
+                    InputStream in = from.getInputStream();
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        queue.put(new Object[] { System.nanoTime() + delayMillis * 1000000, Arrays.copyOf(buf, n) });
+                    }
+                } catch (Exception e) {
+                }
+                queue.add(new Object[] { System.nanoTime() + delayMillis * 1000000, null });
+            });
+            Thread writer = new Thread(() -> {
+                try {
+                    OutputStream out = to.getOutputStream();
+                    while (true) {
+                        Object[] chunk = queue.take();
+                        long wait = (Long) chunk[0] - System.nanoTime();
+                        if (wait > 0) {
+                            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                        }
+                        if (chunk[1] == null) {
+                            to.shutdownOutput();
+                            return;
+                        }
+                        out.write((byte[]) chunk[1]);
+                        out.flush();
+                    }
+                } catch (Exception e) {
+                }
+            });
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        public void close() throws IOException {
+            listener.close();
+        }
+    }
+}
@@ -0,0 +1,31 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// Java Flight Recorder event for one handshake step, from Metrics.Handshake
+// the duration of the event is the duration of the step, waiting for the peer included
+@Name("netpipe.HandshakeStep")
+@Label("Handshake Step")
+@Category("NetPipe")
+@Description("One step of a NetPipe handshake, such as recvClientHello or sendServerFinished")
+@StackTrace(false)
+class HandshakeStepEvent extends jdk.jfr.Event {
+
+    // never committed, only asks whether the event is enabled, so that no event is made when it is not
+    static final HandshakeStepEvent PROBE = new HandshakeStepEvent();
+
+    @Label("Connection")
+    String connection;
+
+    @Label("Side")
+    String side;
+
+    @Label("Step")
+    String step;
+
+    @Label("Error")
+    @Description("First error reported in the step, if any")
+    String error;
+}
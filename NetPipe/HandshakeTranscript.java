@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import javax.crypto.Mac;
+
+// the handshake messages of one connection, as digests instead of copies of the messages
+// every message is added once, with the bytes that go over the wire, when it is sent or received;
+// the digests the protocol needs are built up as the messages go by:
+//   ClientHello, ServerHello          Finished messages of ecdhe (and ServerFinished of version 2)
+//   ServerHello                       ServerFinished of rsa, version 1
+//   ClientHello, Session              ClientFinished of rsa
+//   both hellos with their lengths    key derivation of ecdhe (see KeyExchange)
+//   HMACs over both hellos            Finished messages of a resumed session, once resume() is called
+// the digests of ClientHello with another message continue from a copy of the digest state after
+// ClientHello, so they don't depend on whether the client sends Session before or after it receives
+// ServerHello (the pipelined mode does). ClientHello must come first; messages other than the hellos
+// and Session go into no digest
+public class HandshakeTranscript {
+
+    private HandshakeDigest clientHello = new HandshakeDigest();  // running digest, stops after ClientHello
+    private HandshakeDigest serverHello = new HandshakeDigest();  // ServerHello alone
+    private HandshakeDigest framed = new HandshakeDigest();       // the hellos with their lengths
+    private Mac serverFinished = null;                            // HMACs of a resumed session
+    private Mac clientFinished = null;
+
+    private byte[] hellosDigest = null;
+    private byte[] serverHelloDigest = null;
+    private byte[] sessionDigest = null;
+    private byte[] keyDerivationDigest = null;
+
+    public HandshakeTranscript() throws NoSuchAlgorithmException {
+    }
+
+    // start the Finished HMACs of a resumed session with the resumption secret of the ticket
+    // must be called before ClientHello is added
+    public void resume(byte[] secret) throws GeneralSecurityException {
+        serverFinished = SessionTicket.startHmac(secret, "server finished");
+        clientFinished = SessionTicket.startHmac(secret, "client finished");
+    }
+
+    // add the encoded message to the transcript
+    public void add(HandshakeMessage.MessageType type, byte[] message) {
+        switch(type) {
+            case CLIENTHELLO:
+                clientHello.update(message);
+                addFramed(message);
+                break;
+            case SERVERHELLO:
+                HandshakeDigest hellos = clientHello.copy();
+                hellos.update(message);
+                hellosDigest = hellos.digest();
+                serverHello.update(message);
+                serverHelloDigest = serverHello.digest();
+                addFramed(message);
+                keyDerivationDigest = framed.digest();
+                break;
+            case SESSION:
+                HandshakeDigest session = clientHello.copy();
+                session.update(message);
+                sessionDigest = session.digest();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void addFramed(byte[] message) {
+        framed.update(ByteBuffer.allocate(4).putInt(message.length).array());
+        framed.update(message);
+        if(serverFinished != null) {
+            SessionTicket.addInput(serverFinished, message);
+            SessionTicket.addInput(clientFinished, message);
+        }
+    }
+
+    // encode a message once, add it and return the encoded bytes for sending
+    public byte[] add(HandshakeMessage hm) throws IOException {
+        byte[] message = hm.getBytes();
+        add(hm.getType(), message);
+        return message;
+    }
+
+    // encode, add and send a message
+    public void send(HandshakeMessage hm, Socket socket) throws IOException {
+        HandshakeMessage.send(socket, add(hm));
+    }
+
+    // receive a message and add it as it was received
+    public HandshakeMessage recv(Socket socket) throws IOException {
+        byte[] message = HandshakeMessage.recvBytes(socket);
+        HandshakeMessage hm = HandshakeMessage.fromBytes(message);
+        add(hm.getType(), message);
+        return hm;
+    }
+
+    // digest of ClientHello and ServerHello
+    public byte[] getHellosDigest() {
+        return hellosDigest;
+    }
+
+    // digest of ServerHello alone
+    public byte[] getServerHelloDigest() {
+        return serverHelloDigest;
+    }
+
+    // digest of ClientHello and Session
+    public byte[] getSessionDigest() {
+        return sessionDigest;
+    }
+
+    // digest of both hellos, each after its length, for the ecdhe key derivation
+    public byte[] getKeyDerivationDigest() {
+        return keyDerivationDigest;
+    }
+
+    // HMAC of a resumed session over both hellos, for ServerFinished
+    public byte[] getServerFinishedMac() {
+        return serverFinished.doFinal();
+    }
+
+    // HMAC of a resumed session over both hellos, for ClientFinished
+    public byte[] getClientFinishedMac() {
+        return clientFinished.doFinal();
+    }
+}
@@ -0,0 +1,81 @@
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+// end-to-end check of one direction of a session, computed while the data is forwarded
+// the sender keeps a running SHA-256 over the plaintext it reads and, at end of file, writes a trailer after
+// the data: the byte count (8 bytes, big endian) and an HMAC over the digest and the count, keyed with a secret
+// derived from the session key, with a label for the direction so a trailer can't be sent back to its sender
+// the checked direction is framed in records (see Forwarder.StreamForwarder): each starts with a length of
+// HEADERBYTES (big endian), data records have the length of their data, and the trailer record has length 0
+// and is followed by the trailer. the receiver writes data out as soon as it arrives and digests it, and the
+// trailer must match what it computed. data that was cut short, changed or lost on the way, or a missing
+// trailer, fails the check, without reading the data a second time
+// the digest is the SHA-256 of the data, the same as FileDigest prints for a file that was sent
+public class IntegrityTrailer {
+
+    static final int HEADERBYTES = 4;
+    static final int COUNTBYTES = 8;
+    static final int TRAILERBYTES = COUNTBYTES + SessionTicket.SECRETBYTES;
+
+    private byte[] secret;
+    private String label;
+    private HandshakeDigest digest;
+    private long count = 0;
+    private byte[] finalDigest = null;
+    private boolean verified = false;
+
+    // fromClient tells which direction the data goes, the label of the HMAC depends on it
+    public IntegrityTrailer(SessionCipher sessionCipher, boolean fromClient) throws GeneralSecurityException {
+        this.secret = sessionCipher.deriveSecret("integrity secret", SessionTicket.SECRETBYTES);
+        this.label = fromClient ? "client integrity" : "server integrity";
+        this.digest = new HandshakeDigest();
+    }
+
+    // add data that was forwarded
+    public void update(byte[] b, int off, int len) {
+        digest.update(b, off, len);
+        count += len;
+    }
+
+    // the trailer for the data added so far; no data can be added after this
+    public byte[] getTrailer() throws GeneralSecurityException {
+        byte[] countBytes = ByteBuffer.allocate(COUNTBYTES).putLong(count).array();
+        byte[] mac = SessionTicket.hmac(secret, label, getDigest(), countBytes);
+        return ByteBuffer.allocate(TRAILERBYTES).put(countBytes).put(mac).array();
+    }
+
+    // the trailer record: the header with length 0, then the trailer
+    public byte[] getTrailerRecord() throws GeneralSecurityException {
+        return ByteBuffer.allocate(HEADERBYTES + TRAILERBYTES).putInt(0).put(getTrailer()).array();
+    }
+
+    // check the trailer received at end of file against the data added so far
+    public boolean verify(byte[] trailer) throws GeneralSecurityException {
+        verified = MessageDigest.isEqual(getTrailer(), trailer);
+        return verified;
+    }
+
+    // true once a trailer has been received and matched
+    public boolean isVerified() {
+        return verified;
+    }
+
+    // bytes added
+    public long getCount() {
+        return count;
+    }
+
+    // SHA-256 of the data added, once all data is there
+    public byte[] getDigest() {
+        if(finalDigest == null) {
+            finalDigest = digest.digest();
+        }
+        return finalDigest;
+    }
+
+    public String getEncodedDigest() {
+        return Base64.getEncoder().encodeToString(getDigest());
+    }
+}
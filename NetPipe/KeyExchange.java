@@ -0,0 +1,63 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// ephemeral X25519 key exchange for the ecdhe handshake mode
+// each side makes a fresh key pair for the connection and sends the public key in its hello message
+// (the KeyShare parameter). the session key and IV are derived from the shared secret and a digest
+// of both hellos, so no Session message and no RSA decryption are needed. the certificates only
+// sign the exchange in the Finished messages
+public class KeyExchange {
+
+    public static final String ALGORITHM = "X25519";
+
+    private KeyPair keyPair;
+
+    // create a fresh ephemeral key pair
+    public KeyExchange() throws GeneralSecurityException {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance(ALGORITHM);
+        this.keyPair = kpg.generateKeyPair();
+    }
+
+    // public key to send to the peer (X.509 encoding)
+    public byte[] getPublicKeyBytes() {
+        return keyPair.getPublic().getEncoded();
+    }
+
+    // shared secret with the peer's public key
+    public byte[] sharedSecret(byte[] peerPublicKey) throws GeneralSecurityException {
+        KeyFactory kf = KeyFactory.getInstance(ALGORITHM);
+        PublicKey peer = kf.generatePublic(new X509EncodedKeySpec(peerPublicKey));
+        PrivateKey own = keyPair.getPrivate();
+        KeyAgreement ka = KeyAgreement.getInstance(ALGORITHM);
+        ka.init(own);
+        ka.doPhase(peer, true);
+        return ka.generateSecret();
+    }
+
+    // session key and IV from the shared secret and the transcript digest
+    // HKDF (RFC 5869) with SHA-256: extract with the transcript digest as salt, expand to 32 bytes
+    public static SessionCipher sessionCipher(byte[] sharedSecret, byte[] transcriptDigest) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(transcriptDigest, "HmacSHA256"));
+        byte[] prk = mac.doFinal(sharedSecret);
+
+        mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+        mac.update("netpipe ecdhe session".getBytes(StandardCharsets.UTF_8));
+        mac.update((byte) 1);
+        byte[] okm = mac.doFinal();
+        Arrays.fill(prk, (byte) 0);
+
+        SessionKey sk = new SessionKey(Arrays.copyOfRange(okm, 0, 16));
+        return new SessionCipher(sk, Arrays.copyOfRange(okm, 16, 32));
+    }
+}
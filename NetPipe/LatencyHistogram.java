@@ -0,0 +1,69 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// histogram of durations with power-of-two buckets in microseconds
+// bucket i counts durations up to 2^i microseconds (and above the bound of bucket i-1), the last
+// bucket counts everything longer. recording is lock-free and never allocates, so it can be done
+// from the forwarding and handshake threads; readers see the counts as they are at that moment
+public class LatencyHistogram {
+
+    public static final int BUCKETS = 28; // bucket 26 ends at 2^26 microseconds, about 67 seconds
+
+    private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private LongAdder sumNanos = new LongAdder();
+
+    // count one duration
+    public void record(long nanos) {
+        long micros = Math.max(nanos, 0) / 1000;
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        counts.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        sumNanos.add(nanos);
+    }
+
+    // upper bound of a bucket in microseconds, Long.MAX_VALUE for the last one
+    public static long getUpperBoundMicros(int bucket) {
+        return bucket < BUCKETS - 1 ? 1L << bucket : Long.MAX_VALUE;
+    }
+
+    // durations in one bucket (not cumulative)
+    public long getBucketCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    // upper bound in microseconds of the bucket that holds the given percentile, 0 if there is nothing yet
+    public long getPercentileMicros(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            count += snapshot[i];
+        }
+        long rank = (long) Math.ceil(percentile / 100 * count);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if(seen >= rank && seen > 0) {
+                return getUpperBoundMicros(i);
+            }
+        }
+        return 0;
+    }
+
+    public String toString() {
+        long count = getCount();
+        return String.format("count=%d mean=%dus p50<=%dus p99<=%dus", count, count > 0 ? getSumNanos() / count / 1000 : 0,
+                             getPercentileMicros(50), getPercentileMicros(99));
+    }
+}
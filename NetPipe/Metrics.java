@@ -0,0 +1,339 @@
+import java.io.PrintStream;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// traffic and handshake metrics for the whole process
+// bytes forwarded per connection and direction, with totals over all connections, the duration of
+// every handshake step, and handshake failures counted by cause
+// all counters are lock-free (LongAdder, AtomicLong, LatencyHistogram), so the forwarding and
+// handshake threads never wait for each other or for a reader; snapshot() copies them for reporting
+//
+// directions are seen from this side: "sent" is data read locally and written to the network,
+// "received" is data read from the network and written locally
+public class Metrics {
+
+    private static long startNanos = System.nanoTime();
+    private static LongAdder bytesSent = new LongAdder();
+    private static LongAdder bytesReceived = new LongAdder();
+    private static LongAdder connectionsOpened = new LongAdder();
+    private static ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<>();
+    private static LongAdder handshakesDone = new LongAdder();
+    private static LongAdder handshakesFailed = new LongAdder();
+    private static LatencyHistogram handshakeTimes = new LatencyHistogram();
+    private static ConcurrentHashMap<String, LatencyHistogram> phaseTimes = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private static volatile CertificateCache certificateCache = null;
+
+    private Metrics() {
+    }
+
+    // bytes in one direction of a connection, also added to the total of that direction
+    // each direction is written by one forwarding thread only
+    public static class Counter {
+        private AtomicLong bytes = new AtomicLong();
+        private LongAdder total;
+        private String connection;
+        private String direction;
+
+        Counter(LongAdder total, String connection, String direction) {
+            this.total = total;
+            this.connection = connection;
+            this.direction = direction;
+        }
+
+        public void add(long n) {
+            bytes.addAndGet(n);
+            total.add(n);
+        }
+
+        public long get() {
+            return bytes.get();
+        }
+
+        public String getConnection() {
+            return connection;
+        }
+
+        // "sent" or "received"
+        public String getDirection() {
+            return direction;
+        }
+    }
+
+    // a forwarded connection, from the end of its handshake until both directions are done
+    public static class Connection {
+        private String name;
+        private String remote;
+        private long startNanos = System.nanoTime();
+        private Counter sent;
+        private Counter received;
+
+        Connection(String name, String remote) {
+            this.name = name;
+            this.remote = remote;
+            this.sent = new Counter(bytesSent, name, "sent");
+            this.received = new Counter(bytesReceived, name, "received");
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getRemote() {
+            return remote;
+        }
+
+        public Counter getSent() {
+            return sent;
+        }
+
+        public Counter getReceived() {
+            return received;
+        }
+
+        public double getSeconds() {
+            return (System.nanoTime() - startNanos) / 1e9;
+        }
+
+        public String toString() {
+            double seconds = Math.max(getSeconds(), 1e-3);
+            return String.format("%s %s: sent %d bytes (%.0f B/s), received %d bytes (%.0f B/s), %.1f s",
+                                 name, remote, sent.get(), sent.get() / seconds, received.get(), received.get() / seconds, getSeconds());
+        }
+    }
+
+    // start counting a connection, named after the thread that serves it, as in Forwarder
+    public static Connection openConnection(String name, SocketAddress remote) {
+        Connection connection = new Connection(name, remote == null ? "-" : remote.toString());
+        connections.put(name, connection);
+        connectionsOpened.increment();
+        return connection;
+    }
+
+    // the connection is done, its bytes stay in the totals
+    public static void closeConnection(Connection connection) {
+        connections.remove(connection.getName(), connection);
+    }
+
+    // timing of one handshake, used by the thread that runs it
+    // phase() starts a step and ends the one before it, so every step gets the time until the next
+    // one starts, waiting for the peer included. the first error reported is the failure cause
+    // while a flight recording is running, every step is also a HandshakeStepEvent
+    public static class Handshake {
+        private String side;
+        private String connection;
+        private long startNanos = System.nanoTime();
+        private String phase = null;
+        private long phaseStart;
+        private String cause = null;
+        private boolean finished = false;
+        private HandshakeStepEvent event = null;
+        private String eventError = null;
+
+        // side is "server" or "client"; the connection is named after the thread that runs the handshake,
+        // as in Forwarder
+        public Handshake(String side) {
+            this.side = side;
+            this.connection = Thread.currentThread().getName();
+        }
+
+        public void phase(String name) {
+            long now = System.nanoTime();
+            endPhase(now);
+            phase = name;
+            phaseStart = now;
+            if(HandshakeStepEvent.PROBE.isEnabled()) {
+                event = new HandshakeStepEvent();
+                event.begin();
+            }
+        }
+
+        private void endPhase(long now) {
+            if(phase != null) {
+                phaseTimes.computeIfAbsent(side + "." + phase, k -> new LatencyHistogram()).record(now - phaseStart);
+            }
+            if(event != null) {
+                event.end();
+                if(event.shouldCommit()) {
+                    event.connection = connection;
+                    event.side = side;
+                    event.step = phase;
+                    event.error = eventError;
+                    event.commit();
+                }
+                event = null;
+            }
+            eventError = null;
+        }
+
+        // an error in the current step
+        public void fail(String cause) {
+            if(this.cause == null) {
+                this.cause = cause;
+            }
+            if(eventError == null) {
+                eventError = cause;
+            }
+        }
+
+        // the handshake is over, successful or not
+        public void finish(boolean success) {
+            if(finished) {
+                return;
+            }
+            finished = true;
+            long now = System.nanoTime();
+            endPhase(now);
+            if(success) {
+                handshakesDone.increment();
+                handshakeTimes.record(now - startNanos);
+            }
+            else {
+                handshakesFailed.increment();
+                String key = side + "." + (phase == null ? "start" : phase) + ": " + (cause == null ? "failed" : cause);
+                failures.computeIfAbsent(key, k -> new LongAdder()).increment();
+            }
+            phase = null;
+        }
+    }
+
+    // count a failure outside of the handshake, e.g. in forwarding
+    public static void recordFailure(String cause) {
+        failures.computeIfAbsent(cause, k -> new LongAdder()).increment();
+    }
+
+    public static long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public static long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public static long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    public static int getActiveConnections() {
+        return connections.size();
+    }
+
+    public static Iterable<Connection> getConnections() {
+        return connections.values();
+    }
+
+    public static long getHandshakesDone() {
+        return handshakesDone.sum();
+    }
+
+    public static long getHandshakesFailed() {
+        return handshakesFailed.sum();
+    }
+
+    public static LatencyHistogram getHandshakeTimes() {
+        return handshakeTimes;
+    }
+
+    // duration of each handshake step, keyed by "side.step"
+    public static Map<String, LatencyHistogram> getPhaseTimes() {
+        return phaseTimes;
+    }
+
+    // failure counts keyed by cause
+    public static Map<String, LongAdder> getFailures() {
+        return failures;
+    }
+
+    // report the hits, misses and size of the server's certificate cache (null for none)
+    public static void setCertificateCache(CertificateCache cache) {
+        certificateCache = cache;
+    }
+
+    public static CertificateCache getCertificateCache() {
+        return certificateCache;
+    }
+
+    // copy of all metrics at one moment, for reporting
+    public static class Snapshot {
+        public final double uptimeSeconds;
+        public final long bytesSent;
+        public final long bytesReceived;
+        public final long connectionsOpened;
+        public final List<String> connections = new ArrayList<>();
+        public final long handshakesDone;
+        public final long handshakesFailed;
+        public final String handshakeTimes;
+        public final Map<String, String> phaseTimes = new TreeMap<>();
+        public final Map<String, Long> failures = new TreeMap<>();
+        public final String certificateCache;  // null without a cache
+
+        Snapshot() {
+            uptimeSeconds = (System.nanoTime() - startNanos) / 1e9;
+            bytesSent = getBytesSent();
+            bytesReceived = getBytesReceived();
+            connectionsOpened = getConnectionsOpened();
+            for(Connection connection : Metrics.connections.values()) {
+                connections.add(connection.toString());
+            }
+            handshakesDone = getHandshakesDone();
+            handshakesFailed = getHandshakesFailed();
+            handshakeTimes = Metrics.handshakeTimes.toString();
+            for(Map.Entry<String, LatencyHistogram> entry : Metrics.phaseTimes.entrySet()) {
+                phaseTimes.put(entry.getKey(), entry.getValue().toString());
+            }
+            for(Map.Entry<String, LongAdder> entry : Metrics.failures.entrySet()) {
+                failures.put(entry.getKey(), entry.getValue().sum());
+            }
+            CertificateCache cache = Metrics.certificateCache;
+            certificateCache = cache == null ? null : String.format("%d/%d entries, %d hits, %d misses",
+                                                                    cache.getSize(), cache.getMaxEntries(), cache.getHits(), cache.getMisses());
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("metrics after %.0f s: %d connections (%d active), sent %d bytes, received %d bytes\n",
+                                    uptimeSeconds, connectionsOpened, connections.size(), bytesSent, bytesReceived));
+            for(String connection : connections) {
+                sb.append("  connection ").append(connection).append('\n');
+            }
+            sb.append(String.format("  handshakes: %d done, %d failed, %s\n", handshakesDone, handshakesFailed, handshakeTimes));
+            for(Map.Entry<String, String> entry : phaseTimes.entrySet()) {
+                sb.append("  step ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+            for(Map.Entry<String, Long> entry : failures.entrySet()) {
+                sb.append("  failure ").append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+            if(certificateCache != null) {
+                sb.append("  certificate cache: ").append(certificateCache).append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    public static Snapshot snapshot() {
+        return new Snapshot();
+    }
+
+    // print a snapshot every interval seconds, from a daemon thread
+    public static void startReporting(long interval, PrintStream out) {
+        Thread thread = new Thread(() -> {
+            while(true) {
+                try {
+                    Thread.sleep(interval * 1000);
+                }
+                catch(InterruptedException ie) {
+                    return;
+                }
+                out.print(snapshot());
+            }
+        }, "metrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,292 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+// serves Metrics as a Prometheus text page on http://localhost:<port>/metrics
+// requests are handled one at a time by a single daemon thread, which renders the page into a
+// byte array it keeps between requests. the counters are only read (LongAdder sums, atomic histogram
+// buckets), so a scrape never blocks the forwarding or handshake threads, and apart from the
+// HttpServer's own objects per exchange, rendering does not allocate once the page has grown to size
+public class MetricsServer {
+
+    private HttpServer server;
+    private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    // owned by the handler thread
+    private byte[] page = new byte[16 * 1024];
+    private int length;
+    private byte[] digits = new byte[20];
+    private Map<String, String> stepLabels = new HashMap<>();  // "side.step" -> label string, made once per step
+    private BiConsumer<String, LatencyHistogram> stepRenderer = this::renderStep;
+    private BiConsumer<String, LongAdder> failureRenderer = this::renderFailure;
+    private BandwidthScheduler scheduler = null;
+
+    // listen on the loopback interface only
+    public MetricsServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.createContext("/metrics", this::handle);
+        server.start();
+    }
+
+    // export the limits and observed rates of the connections of a BandwidthScheduler (null for none)
+    public void setScheduler(BandwidthScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    // the HttpServer's dispatcher thread is not a daemon, stop it for the program to exit
+    public void stop() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try(exchange) {
+            String method = exchange.getRequestMethod();
+            if(!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            render();
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            if(method.equals("HEAD")) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, length);
+            OutputStream body = exchange.getResponseBody();
+            body.write(page, 0, length);
+        }
+    }
+
+    // the whole page, into page[0..length)
+    void render() {
+        length = 0;
+        header("netpipe_connections_active", "gauge", "Connections being forwarded");
+        sample("netpipe_connections_active", null, Metrics.getActiveConnections());
+        header("netpipe_connections_total", "counter", "Connections forwarded since start");
+        sample("netpipe_connections_total", null, Metrics.getConnectionsOpened());
+
+        header("netpipe_handshakes_total", "counter", "Handshakes by result");
+        sample("netpipe_handshakes_total", "result=\"done\"", Metrics.getHandshakesDone());
+        sample("netpipe_handshakes_total", "result=\"failed\"", Metrics.getHandshakesFailed());
+        header("netpipe_handshake_duration_seconds", "histogram", "Duration of successful handshakes");
+        histogram("netpipe_handshake_duration_seconds", null, Metrics.getHandshakeTimes());
+        header("netpipe_handshake_step_duration_seconds", "histogram", "Duration of each handshake step, waiting for the peer included");
+        Metrics.getPhaseTimes().forEach(stepRenderer);
+        header("netpipe_failures_total", "counter", "Failures by cause");
+        Metrics.getFailures().forEach(failureRenderer);
+
+        header("netpipe_bytes_total", "counter", "Plaintext bytes forwarded, sent is towards the network");
+        sample("netpipe_bytes_total", "direction=\"sent\"", Metrics.getBytesSent());
+        sample("netpipe_bytes_total", "direction=\"received\"", Metrics.getBytesReceived());
+
+        header("netpipe_buffer_pool_bytes", "gauge", "Forwarding buffer memory, allocated in slabs and handed out to connections");
+        sample("netpipe_buffer_pool_bytes", "pool=\"heap\",state=\"allocated\"", BufferPool.HEAP.getSlabBytes());
+        sample("netpipe_buffer_pool_bytes", "pool=\"heap\",state=\"inuse\"", BufferPool.HEAP.getInUseBytes());
+        sample("netpipe_buffer_pool_bytes", "pool=\"direct\",state=\"allocated\"", BufferPool.DIRECT.getSlabBytes());
+        sample("netpipe_buffer_pool_bytes", "pool=\"direct\",state=\"inuse\"", BufferPool.DIRECT.getInUseBytes());
+        header("netpipe_buffer_pool_buffers", "gauge", "Forwarding buffers handed out to connections");
+        sample("netpipe_buffer_pool_buffers", "pool=\"heap\"", BufferPool.HEAP.getInUseBuffers());
+        sample("netpipe_buffer_pool_buffers", "pool=\"direct\"", BufferPool.DIRECT.getInUseBuffers());
+
+        header("netpipe_threads", "gauge", "Live platform threads (virtual threads of connections are not included)");
+        sample("netpipe_threads", null, threads.getThreadCount());
+        header("netpipe_nio_connections", "gauge", "Connections on the nio event loops");
+        sample("netpipe_nio_connections", null, NioForwarder.getConnectionCount());
+
+        CertificateCache cache = Metrics.getCertificateCache();
+        if(cache != null) {
+            header("netpipe_certificate_cache_lookups_total", "counter", "Client certificate lookups by result");
+            sample("netpipe_certificate_cache_lookups_total", "result=\"hit\"", cache.getHits());
+            sample("netpipe_certificate_cache_lookups_total", "result=\"miss\"", cache.getMisses());
+            header("netpipe_certificate_cache_entries", "gauge", "Client certificates in the cache");
+            sample("netpipe_certificate_cache_entries", null, cache.getSize());
+            header("netpipe_certificate_cache_capacity", "gauge", "Client certificates the cache holds at most");
+            sample("netpipe_certificate_cache_capacity", null, cache.getMaxEntries());
+        }
+        if(scheduler != null) {
+            header("netpipe_bandwidth_limit_bytes_per_second", "gauge", "Limit on data sent to all clients together, 0 for none");
+            sample("netpipe_bandwidth_limit_bytes_per_second", null, scheduler.getGlobalRate());
+            header("netpipe_connection_limit_bytes_per_second", "gauge", "Limit on data sent to a client, by its CN, 0 for none");
+            for(BandwidthScheduler.Flow flow : scheduler.getFlows()) {
+                renderFlow("netpipe_connection_limit_bytes_per_second", flow, flow.getRate());
+            }
+            header("netpipe_connection_rate_bytes_per_second", "gauge", "Observed rate of data sent to a client over the last second or more");
+            for(BandwidthScheduler.Flow flow : scheduler.getFlows()) {
+                renderFlow("netpipe_connection_rate_bytes_per_second", flow, (long) flow.getObservedRate());
+            }
+        }
+    }
+
+    private void renderStep(String key, LatencyHistogram histogram) {
+        String labels = stepLabels.get(key);
+        if(labels == null) {
+            int dot = key.indexOf('.');
+            labels = "side=\"" + key.substring(0, dot) + "\",step=\"" + key.substring(dot + 1) + "\"";
+            stepLabels.put(key, labels);
+        }
+        histogram("netpipe_handshake_step_duration_seconds", labels, histogram);
+    }
+
+    private void renderFlow(String name, BandwidthScheduler.Flow flow, long value) {
+        put(name);
+        put("{connection=\"");
+        putLabelValue(flow.getName());
+        put("\",cn=\"");
+        putLabelValue(flow.getClientName() == null ? "" : flow.getClientName());
+        put("\"} ");
+        putLong(value);
+        put('\n');
+    }
+
+    private void renderFailure(String cause, LongAdder count) {
+        put("netpipe_failures_total{cause=\"");
+        putLabelValue(cause);
+        put("\"} ");
+        putLong(count.sum());
+        put('\n');
+    }
+
+    private void header(String name, String type, String help) {
+        put("# HELP ");
+        put(name);
+        put(' ');
+        put(help);
+        put("\n# TYPE ");
+        put(name);
+        put(' ');
+        put(type);
+        put('\n');
+    }
+
+    private void sample(String name, String labels, long value) {
+        put(name);
+        if(labels != null) {
+            put('{');
+            put(labels);
+            put('}');
+        }
+        put(' ');
+        putLong(value);
+        put('\n');
+    }
+
+    // cumulative buckets, sum and count; count is the last cumulative bucket, so they agree
+    private void histogram(String name, String labels, LatencyHistogram histogram) {
+        long cumulative = 0;
+        for(int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            cumulative += histogram.getBucketCount(i);
+            put(name);
+            put("_bucket{");
+            if(labels != null) {
+                put(labels);
+                put(',');
+            }
+            put("le=\"");
+            if(i < LatencyHistogram.BUCKETS - 1) {
+                putSeconds(LatencyHistogram.getUpperBoundMicros(i) * 1000);
+            }
+            else {
+                put("+Inf");
+            }
+            put("\"} ");
+            putLong(cumulative);
+            put('\n');
+        }
+        put(name);
+        put("_sum");
+        if(labels != null) {
+            put('{');
+            put(labels);
+            put('}');
+        }
+        put(' ');
+        putSeconds(histogram.getSumNanos());
+        put('\n');
+        put(name);
+        put("_count");
+        if(labels != null) {
+            put('{');
+            put(labels);
+            put('}');
+        }
+        put(' ');
+        putLong(cumulative);
+        put('\n');
+    }
+
+    // the page is ASCII, other characters become '?'
+    private void put(char c) {
+        if(length == page.length) {
+            page = Arrays.copyOf(page, 2 * page.length);
+        }
+        page[length++] = (byte) (c < 128 ? c : '?');
+    }
+
+    private void put(String s) {
+        for(int i = 0; i < s.length(); i++) {
+            put(s.charAt(i));
+        }
+    }
+
+    private void putLabelValue(String s) {
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == '\\' || c == '"') {
+                put('\\');
+                put(c);
+            }
+            else if(c == '\n') {
+                put("\\n");
+            }
+            else {
+                put(c);
+            }
+        }
+    }
+
+    private void putLong(long value) {
+        if(value < 0) {
+            put('-');
+            value = -value;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while(value > 0);
+        while(n > 0) {
+            put((char) digits[--n]);
+        }
+    }
+
+    // nanoseconds as seconds with nine decimals
+    private void putSeconds(long nanos) {
+        putLong(nanos / 1_000_000_000);
+        put('.');
+        long fraction = Math.abs(nanos % 1_000_000_000);
+        for(long unit = 100_000_000; unit > 0; unit /= 10) {
+            put((char) ('0' + fraction / unit % 10));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// many independent bidirectional streams (MuxStream) over the decrypted/encrypted streams of one session,
+// so opening a stream costs one frame instead of a connection and a handshake
+// frames are a 1-byte type, a 4-byte stream id, a 4-byte length (big endian) and the payload:
+//   OPEN    opens a stream, the payload is the target given to open()
+//   DATA    data of a stream, at most MAXFRAME bytes
+//   CREDIT  the receiver has read the number of bytes in the 4-byte payload, so the sender may send that much more
+//   CLOSE   the sender has no more data for the stream (half close)
+//   RESET   the stream is aborted in both directions
+// the client opens streams with odd ids and the server with even ids, so the ids of both sides never collide
+//
+// one reader thread takes frames from the session and hands them to the streams without waiting for them;
+// flow control (see MuxStream) keeps the unread data of each stream within its window
+// writers take turns on a fair lock, one frame each, so the frames of a bulk stream are interleaved with those
+// of interactive streams instead of queueing ahead of them
+public class Multiplexer {
+
+    static final int OPEN = 1;
+    static final int DATA = 2;
+    static final int CREDIT = 3;
+    static final int CLOSE = 4;
+    static final int RESET = 5;
+    static final int HEADERBYTES = 9;
+    static final int MAXFRAME = 16 * 1024;
+    static final int WINDOW = 256 * 1024;
+    private static final MuxStream END = new MuxStream(null, 0, null);  // queued for accept when the session is over
+
+    private InputStream input;
+    private OutputStream output;
+    private boolean client;
+    private AtomicInteger nextId;
+    private ConcurrentHashMap<Integer, MuxStream> streams = new ConcurrentHashMap<>();
+    private LinkedBlockingQueue<MuxStream> opened = new LinkedBlockingQueue<>();
+    private volatile boolean ended = false;
+
+    private ReentrantLock writeLock = new ReentrantLock(true);
+    private byte[] frame = new byte[HEADERBYTES + MAXFRAME];  // guarded by writeLock
+    private boolean outputClosed = false;                     // guarded by writeLock
+
+    // input and output are the session's streams after decryption and before encryption
+    public Multiplexer(InputStream input, OutputStream output, boolean client) {
+        this.input = input;
+        this.output = output;
+        this.client = client;
+        this.nextId = new AtomicInteger(client ? 1 : 2);
+    }
+
+    // start the reader thread, a virtual thread when called from one (as in Forwarder)
+    public void start() {
+        Thread.Builder builder = Thread.currentThread().isVirtual() ? Thread.ofVirtual() : Thread.ofPlatform();
+        Thread reader = builder.name(Thread.currentThread().getName() + "-demux").unstarted(this::readFrames);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // open a new stream; the peer gets it from accept() with the same target
+    public MuxStream open(String target) throws IOException {
+        MuxStream stream = new MuxStream(this, nextId.getAndAdd(2), target);
+        streams.put(stream.getId(), stream);
+        byte[] payload = target.getBytes(StandardCharsets.UTF_8);
+        try {
+            sendFrame(OPEN, stream.getId(), payload, 0, payload.length);
+        }
+        catch(IOException ioe) {
+            remove(stream);
+            throw ioe;
+        }
+        return stream;
+    }
+
+    // wait for the next stream opened by the peer
+    // return null when the session is over
+    public MuxStream accept() throws InterruptedException {
+        MuxStream stream = opened.take();
+        if(stream == END) {
+            opened.add(END);
+            return null;
+        }
+        return stream;
+    }
+
+    // streams that are open in at least one direction
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    // true when the peer has closed the session or it failed
+    public boolean isEnded() {
+        return ended;
+    }
+
+    // no more frames from this side; the session's output is closed, streams can still receive
+    // until the peer closes its side too
+    public void close() throws IOException {
+        writeLock.lock();
+        try {
+            if(!outputClosed) {
+                outputClosed = true;
+                output.close();
+            }
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    void remove(MuxStream stream) {
+        streams.remove(stream.getId(), stream);
+    }
+
+    void sendCredit(int id, int n) throws IOException {
+        byte[] payload = { (byte) (n >> 24), (byte) (n >> 16), (byte) (n >> 8), (byte) n };
+        sendFrame(CREDIT, id, payload, 0, payload.length);
+    }
+
+    // send one frame with one write to the session's output
+    // if the output fails, the session is no good for any stream
+    void sendFrame(int type, int id, byte[] b, int off, int len) throws IOException {
+        writeLock.lock();
+        try {
+            if(outputClosed || ended) {
+                throw new IOException("Session closed");
+            }
+            frame[0] = (byte) type;
+            putInt(frame, 1, id);
+            putInt(frame, 5, len);
+            if(len > 0) {
+                System.arraycopy(b, off, frame, HEADERBYTES, len);
+            }
+            output.write(frame, 0, HEADERBYTES + len);
+        }
+        catch(IOException ioe) {
+            outputClosed = true;
+            throw ioe;
+        }
+        finally {
+            writeLock.unlock();
+        }
+    }
+
+    // reader thread: hand every frame to its stream until the session ends
+    private void readFrames() {
+        byte[] header = new byte[HEADERBYTES];
+        byte[] payload = new byte[MAXFRAME];
+        try {
+            while(input.readNBytes(header, 0, HEADERBYTES) == HEADERBYTES) {
+                int type = header[0];
+                int id = getInt(header, 1);
+                int length = getInt(header, 5);
+                if(length < 0 || length > MAXFRAME) {
+                    throw new IOException("Multiplexer frame too long");
+                }
+                if(input.readNBytes(payload, 0, length) < length) {
+                    break;
+                }
+                dispatch(type, id, payload, length);
+            }
+        }
+        catch(IOException ioe) {
+            System.err.println("Multiplexer error in " + Thread.currentThread().getName() + ": " + ioe.getMessage());
+            Metrics.recordFailure("multiplexer: " + ioe.getClass().getSimpleName());
+        }
+        ended = true;
+        for(MuxStream stream : streams.values()) {
+            stream.sessionEnded();
+        }
+        opened.add(END);
+    }
+
+    private void dispatch(int type, int id, byte[] payload, int length) throws IOException {
+        if(type == OPEN) {
+            boolean ours = (id % 2 == 1) == client;
+            if(ours || id <= 0 || streams.containsKey(id)) {
+                throw new IOException("Bad stream id " + id);
+            }
+            MuxStream stream = new MuxStream(this, id, new String(payload, 0, length, StandardCharsets.UTF_8));
+            streams.put(id, stream);
+            opened.add(stream);
+            return;
+        }
+        MuxStream stream = streams.get(id);
+        if(stream == null) {
+            return; // reset or done on this side, the peer will learn soon enough
+        }
+        switch(type) {
+            case DATA:
+                if(!stream.receive(payload, 0, length)) {
+                    throw new IOException("Stream " + id + " exceeded its window");
+                }
+                break;
+            case CREDIT:
+                if(length != 4) {
+                    throw new IOException("Bad credit frame");
+                }
+                stream.credit(getInt(payload, 0));
+                break;
+            case CLOSE:
+                stream.remoteClose();
+                break;
+            case RESET:
+                stream.remoteReset();
+                break;
+            default:
+                throw new IOException("Unknown multiplexer frame type " + type);
+        }
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >> 24);
+        b[off + 1] = (byte) (value >> 16);
+        b[off + 2] = (byte) (value >> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+}
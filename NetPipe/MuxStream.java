@@ -0,0 +1,344 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// one bidirectional stream of a Multiplexer, used through getInputStream and getOutputStream like a socket
+// flow control: the sender may have at most Multiplexer.WINDOW bytes that the application on the other
+// side has not read yet. the receiver gives credit back (a CREDIT frame) once half of that has been read,
+// so a stream nobody reads stops its own sender, and never the other streams or the reader thread
+// closing the output stream sends CLOSE (half close); closing the input stream before the end of the
+// data resets the stream in both directions, as nothing would read the rest
+public class MuxStream {
+
+    private Multiplexer multiplexer;
+    private int id;
+    private String target;
+
+    // a ReentrantLock rather than synchronized, so waiting virtual threads don't hold on to their carrier
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition readable = lock.newCondition();
+    private Condition writable = lock.newCondition();
+
+    // receiving side, guarded by lock
+    private ArrayDeque<byte[]> received = new ArrayDeque<>();
+    private int position = 0;        // read position in the first array of received
+    private int buffered = 0;        // received and not read yet
+    private int unacknowledged = 0;  // read, but not given back to the sender as credit yet
+    private boolean remoteClosed = false;
+    private boolean inputClosed = false;
+
+    // sending side, guarded by lock
+    private long credit = Multiplexer.WINDOW;
+    private boolean outputClosed = false;
+
+    // both sides, guarded by lock
+    private boolean reset = false;
+    private boolean sessionEnded = false;
+
+    private InputStream input = new MuxInputStream();
+    private OutputStream output = new MuxOutputStream();
+
+    MuxStream(Multiplexer multiplexer, int id, String target) {
+        this.multiplexer = multiplexer;
+        this.id = id;
+        this.target = target;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    // what the side that opened the stream asked to connect to
+    public String getTarget() {
+        return target;
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    // close both directions
+    public void close() throws IOException {
+        output.close();
+        input.close();
+    }
+
+    // abort the stream in both directions, e.g. when the connection it stands for could not be made
+    public void reset() throws IOException {
+        boolean sendReset;
+        lock.lock();
+        try {
+            sendReset = !reset && !sessionEnded && !(outputClosed && remoteClosed);
+            reset = true;
+            received.clear();
+            position = 0;
+            buffered = 0;
+            readable.signalAll();
+            writable.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        multiplexer.remove(this);
+        if(sendReset) {
+            multiplexer.sendFrame(Multiplexer.RESET, id, null, 0, 0);
+        }
+    }
+
+    // DATA from the peer, called by the reader thread; never waits
+    // return false if the peer sent more than its window allows
+    boolean receive(byte[] b, int off, int len) {
+        lock.lock();
+        try {
+            if(buffered + unacknowledged + len > Multiplexer.WINDOW) {
+                return false;
+            }
+            if(inputClosed || reset) {
+                return true; // nobody reads it any more
+            }
+            received.add(Arrays.copyOfRange(b, off, off + len));
+            buffered += len;
+            readable.signalAll();
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // CREDIT from the peer: it has read n more bytes
+    void credit(int n) {
+        lock.lock();
+        try {
+            credit += n;
+            writable.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    // CLOSE from the peer: no more data after what was received
+    void remoteClose() {
+        lock.lock();
+        try {
+            remoteClosed = true;
+            readable.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        removeIfDone();
+    }
+
+    // RESET from the peer
+    void remoteReset() {
+        lock.lock();
+        try {
+            reset = true;
+            received.clear();
+            position = 0;
+            buffered = 0;
+            readable.signalAll();
+            writable.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        multiplexer.remove(this);
+    }
+
+    // the session is over: data the peer had closed can still be read, anything else is cut off
+    void sessionEnded() {
+        lock.lock();
+        try {
+            sessionEnded = true;
+            if(!remoteClosed) {
+                reset = true;
+            }
+            readable.signalAll();
+            writable.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    private void removeIfDone() {
+        boolean done;
+        lock.lock();
+        try {
+            done = outputClosed && remoteClosed;
+        }
+        finally {
+            lock.unlock();
+        }
+        if(done) {
+            multiplexer.remove(this);
+        }
+    }
+
+    private class MuxInputStream extends InputStream {
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            int n = 0;
+            int update = 0;
+            lock.lock();
+            try {
+                while(buffered == 0 && !remoteClosed && !reset && !inputClosed) {
+                    readable.await();
+                }
+                if(inputClosed) {
+                    throw new IOException("Stream closed");
+                }
+                if(reset) {
+                    throw new IOException(sessionEnded ? "Session closed" : "Stream reset");
+                }
+                if(buffered == 0) {
+                    return -1;
+                }
+                while(n < len && buffered > 0) {
+                    byte[] first = received.peek();
+                    int count = Math.min(len - n, first.length - position);
+                    System.arraycopy(first, position, b, off + n, count);
+                    position += count;
+                    n += count;
+                    buffered -= count;
+                    if(position == first.length) {
+                        received.poll();
+                        position = 0;
+                    }
+                }
+                unacknowledged += n;
+                if(unacknowledged >= Multiplexer.WINDOW / 2 && !remoteClosed) {
+                    update = unacknowledged;
+                    unacknowledged = 0;
+                }
+            }
+            catch(InterruptedException ie) {
+                throw new InterruptedIOException();
+            }
+            finally {
+                lock.unlock();
+            }
+            if(update > 0) {
+                try {
+                    multiplexer.sendCredit(id, update);
+                }
+                catch(IOException ioe) {
+                    // the session's output failed; this data was read, the next read reports the end
+                }
+            }
+            return n;
+        }
+
+        public int available() {
+            lock.lock();
+            try {
+                return buffered;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        public void close() throws IOException {
+            boolean sendReset;
+            lock.lock();
+            try {
+                if(inputClosed) {
+                    return;
+                }
+                inputClosed = true;
+                sendReset = !remoteClosed && !reset;
+                if(sendReset) {
+                    reset = true;
+                }
+                received.clear();
+                position = 0;
+                buffered = 0;
+                readable.signalAll();
+                writable.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+            if(sendReset) {
+                multiplexer.remove(MuxStream.this);
+                multiplexer.sendFrame(Multiplexer.RESET, id, null, 0, 0);
+            }
+        }
+    }
+
+    private class MuxOutputStream extends OutputStream {
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        // send as DATA frames of at most MAXFRAME bytes, waiting for credit when the window is used up
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                int n;
+                lock.lock();
+                try {
+                    while(credit == 0 && !reset && !sessionEnded && !outputClosed) {
+                        writable.await();
+                    }
+                    if(outputClosed) {
+                        throw new IOException("Stream closed");
+                    }
+                    if(reset || sessionEnded) {
+                        throw new IOException(sessionEnded ? "Session closed" : "Stream reset");
+                    }
+                    n = (int) Math.min(Math.min(len, credit), Multiplexer.MAXFRAME);
+                    credit -= n;
+                }
+                catch(InterruptedException ie) {
+                    throw new InterruptedIOException();
+                }
+                finally {
+                    lock.unlock();
+                }
+                multiplexer.sendFrame(Multiplexer.DATA, id, b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                if(outputClosed || reset || sessionEnded) {
+                    outputClosed = true;
+                    return;
+                }
+                outputClosed = true;
+                writable.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+            multiplexer.sendFrame(Multiplexer.CLOSE, id, null, 0, 0);
+            removeIfDone();
+        }
+    }
+}
@@ -1,32 +1,21 @@
 import java.net.*;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.SocketChannel;
 import java.io.*;
-import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.security.InvalidAlgorithmParameterException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
-import java.security.spec.InvalidKeySpecException;
-import java.time.DateTimeException;
-import java.time.Duration;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
-import java.util.Base64;
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class NetPipeClient {
     
     private static String PROGRAMNAME = NetPipeClient.class.getSimpleName();
     private static Arguments arguments;
-    private static byte[] ClientHello = null;
-    private static byte[] ServerHello = null;
-    private static byte[] Session = null;
+    private static Socket tunnelSocket = null;          // guarded by tunnelLock
+    private static Multiplexer tunnel = null;           // guarded by tunnelLock
+    private static ReentrantLock tunnelLock = new ReentrantLock();
 
     // usage: explain how to use the program, then exit with failure status
     private static void usage() {
@@ -39,6 +28,18 @@ public class NetPipeClient {
         System.err.println(indent + "--usercert=<filename>");
         System.err.println(indent + "--cacert=<filename>");
         System.err.println(indent + "--key=<filename>");
+        System.err.println(indent + "--cipherpath=<stream|buffer|parallel>");
+        System.err.println(indent + "--transport=<ctr|gcm>");
+        System.err.println(indent + "--recordsize=<bytes>");
+        System.err.println(indent + "--compression=<none|deflate>");
+        System.err.println(indent + "--integrity=<none|sha256>");
+        System.err.println(indent + "--ticketfile=<filename>");
+        System.err.println(indent + "--keyexchange=<rsa|ecdhe>");
+        System.err.println(indent + "--handshake=<lockstep|pipelined>");
+        System.err.println(indent + "--handshakeversion=<1|2>");
+        System.err.println(indent + "--servercert=<filename>");
+        System.err.println(indent + "--listen=<portnumber>");
+        System.err.println(indent + "--metricsinterval=<seconds>");
 
         System.exit(1);
     }
@@ -51,6 +52,27 @@ public class NetPipeClient {
         arguments.setArgumentSpec("usercert", "filename");
         arguments.setArgumentSpec("cacert", "filename");
         arguments.setArgumentSpec("key", "filename");
+        arguments.setArgumentSpec("cipherpath", "stream|buffer|parallel");
+        arguments.setDefault("cipherpath", "stream");
+        arguments.setArgumentSpec("transport", "ctr|gcm");
+        arguments.setDefault("transport", SessionParameters.CTR);
+        arguments.setArgumentSpec("recordsize", "bytes");
+        arguments.setDefault("recordsize", Integer.toString(RecordOutputStream.DEFAULTRECORDSIZE));
+        arguments.setArgumentSpec("compression", "none|deflate");
+        arguments.setDefault("compression", SessionParameters.NONE);
+        arguments.setArgumentSpec("integrity", "none|sha256");
+        arguments.setDefault("integrity", SessionParameters.NONE);
+        arguments.setArgumentSpec("ticketfile", "filename");
+        arguments.setArgumentSpec("keyexchange", "rsa|ecdhe");
+        arguments.setDefault("keyexchange", SessionParameters.RSA);
+        arguments.setArgumentSpec("handshake", "lockstep|pipelined");
+        arguments.setDefault("handshake", "lockstep");
+        arguments.setArgumentSpec("handshakeversion", "1|2");
+        arguments.setDefault("handshakeversion", Integer.toString(SessionParameters.LATESTVERSION));
+        arguments.setArgumentSpec("servercert", "filename");
+        arguments.setArgumentSpec("listen", "portnumber");
+        arguments.setArgumentSpec("metricsinterval", "seconds");
+        arguments.setDefault("metricsinterval", "0");
 
         try {
         arguments.loadArguments(args);
@@ -131,9 +153,12 @@ public class NetPipeClient {
     }
 
     // initiate socket
+    // opened through a SocketChannel, so that the buffer cipher path can use the channel
+    // handshake messages are small, and with Nagle's algorithm each one would wait for the previous one to be acknowledged
     private static Socket initSocket(String host, int port) {
         try {
-            Socket socket = new Socket(host, port);
+            Socket socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+            socket.setTcpNoDelay(true);
 
             return socket;
         }
@@ -143,175 +168,151 @@ public class NetPipeClient {
         }
     }
 
-    // send ClientHello message
-    private static void sendClientHello(Socket socket, HandshakeCertificate usercert) {
-        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.CLIENTHELLO);
+    // save the ticket received in the handshake for the next connection
+    // tickets are single use, so without a new one the file is removed
+    private static void saveTicket(String pathName, SessionTicket ticket) {
         try {
-            X509Certificate cert = usercert.getCertificate();
-            byte[] certBytes = cert.getEncoded();
-            String encodedCert = Base64.getEncoder().encodeToString(certBytes);
-            hm.put("Certificate", encodedCert);
-            ClientHello = hm.getBytes();
-
-            hm.send(socket);
-        }
-        catch(CertificateEncodingException cee) {
-            System.err.printf("Error getting encoded certificate\n");
-            System.exit(1);
+            if(ticket == null) {
+                new File(pathName).delete();
+            }
+            else {
+                ticket.save(pathName);
+            }
         }
         catch(IOException ioe) {
-            System.err.printf("Error sending ClientHello\n");
-            System.exit(1);
+            System.err.printf("Error saving session ticket %s\n", pathName);
         }
     }
 
-    // receive ServerHello and verify server certificate
-    private static HandshakeCertificate recvServerHello(Socket socket, HandshakeCertificate CA) {
+    // local session settings for a new connection, the handshake adds the negotiated ones
+    // every handshake gets its own, so what one server negotiated doesn't carry over to the next session
+    private static SessionParameters newParameters() {
+        SessionParameters parameters = new SessionParameters(true);
+        parameters.setCipherPath(arguments.get("cipherpath"));
+        parameters.setKeyExchange(arguments.get("keyexchange"));
+        parameters.setTransport(arguments.get("transport"));
+        parameters.setCompression(arguments.get("compression"));
+        parameters.setIntegrity(arguments.get("integrity"));
+        parameters.setMultiplex(arguments.get("listen") != null);
+        parameters.setRecordSize(Integer.parseInt(arguments.get("recordsize")));
+        parameters.setHandshakeVersion(Integer.parseInt(arguments.get("handshakeversion")));
+
+        return parameters;
+    }
+
+    // handshake a new multiplexed session for port forwarding, with a ticket if there is a ticket file
+    // return null if the server can't be reached or the handshake fails
+    private static Multiplexer openTunnel(String host, int port, HandshakeCertificate clientCert, HandshakeCertificate caCert, byte[] key) {
+        Socket socket = initSocket(host, port);
+        if(socket == null) {
+            return null;
+        }
         try {
-            HandshakeMessage hm = HandshakeMessage.recv(socket);
-            if(hm.getType().getCode() != 2) {
-                throw new IOException();
+            SessionParameters parameters = newParameters();
+            ClientHandshake handshake = new ClientHandshake(socket, clientCert, caCert, key, parameters);
+            String ticketPath = arguments.get("ticketfile");
+            if(ticketPath != null) {
+                handshake.setTicket(SessionTicket.load(ticketPath));
+                handshake.setRequestTicket(true);
             }
-            String encodedCert = hm.getParameter("Certificate");
-            byte[] decodedCert = Base64.getDecoder().decode(encodedCert);
-            HandshakeCertificate serverCert = new HandshakeCertificate(decodedCert);
-            verifyServerCert(serverCert, CA);
-            ServerHello = hm.getBytes();
-
-            return serverCert;
+            SessionCipher sessionCipher = handshake.run();
+            if(sessionCipher == null) {
+                socket.close();
+                return null;
+            }
+            if(ticketPath != null) {
+                saveTicket(ticketPath, handshake.getNewTicket());
+            }
+            tunnelSocket = socket;
+            return Forwarder.openMultiplexer(socket, sessionCipher, parameters);
         }
-        catch(IOException | ClassNotFoundException e) {
-            System.err.printf("Error receiving ServerHello from server\n");
+        catch(IOException ioe) {
+            System.err.println("Error opening tunnel");
             return null;
         }
-        catch(CertificateException ce) {
-            System.err.printf("Error reading server certificate\n");
+        catch(GeneralSecurityException gse) {
+            System.err.println("Error opening encrypted and/or decrypted stream");
             return null;
         }
     }
 
-    // send Session message and get session key + IV
-    private static SessionCipher sendSession(Socket socket, HandshakeCertificate serverCert) {
-        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.SESSION);
-        HandshakeCrypto hc = new HandshakeCrypto(serverCert);
+    // open a stream for a new local connection, on the current session or, if the server has closed it,
+    // on a new one
+    // connections that arrive while a session is handshaked wait for it, instead of each starting one
+    private static MuxStream openStream(String host, int port, HandshakeCertificate clientCert, HandshakeCertificate caCert, byte[] key) {
+        tunnelLock.lock();
         try {
-            SessionKey sk = new SessionKey(128);
-            SessionCipher sc = new SessionCipher(sk);
-            byte[] SKBytes = sk.getKeyBytes();
-            byte[] IVBytes = sc.getIVBytes();
-            SKBytes = hc.encrypt(SKBytes);
-            IVBytes = hc.encrypt(IVBytes);
-            String encodedSK = Base64.getEncoder().encodeToString(SKBytes);
-            String encodedIV = Base64.getEncoder().encodeToString(IVBytes);
-            hm.put("SessionKey", encodedSK);
-            hm.put("SessionIV", encodedIV);
-            Session = hm.getBytes();
-            hm.send(socket);
-
-            return sc;
+            return openStreamLocked(host, port, clientCert, caCert, key);
         }
-        catch(NoSuchAlgorithmException nsae) {
-            System.err.printf("Error creating session key\n");
-            return null;
-        }
-        catch(NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
-            System.err.printf("Error encrypting session message\n");
-            return null;
-        }
-        catch(IOException ioe) {
-            System.err.printf("Error sending Session\n");
-            return null;
+        finally {
+            tunnelLock.unlock();
         }
     }
 
-    // receive ServerFinished message and check integrity and authentication of handshake
-    private static void recvServerFinished(Socket socket, HandshakeCertificate serverCert) {
-        HandshakeCrypto hc = new HandshakeCrypto(serverCert);
-        try {
-            HandshakeMessage hm = HandshakeMessage.recv(socket);
-            if(hm.getType().getCode() != 5) {
-                throw new IOException();
+    private static MuxStream openStreamLocked(String host, int port, HandshakeCertificate clientCert, HandshakeCertificate caCert, byte[] key) {
+        for(int attempt = 0; attempt < 2; attempt++) {
+            if(tunnel == null || tunnel.isEnded()) {
+                if(tunnelSocket != null) {
+                    try {
+                        tunnelSocket.close();
+                    }
+                    catch(IOException ioe) {}
+                }
+                tunnel = openTunnel(host, port, clientCert, caCert, key);
+                if(tunnel == null) {
+                    return null;
+                }
             }
-
-            LocalDateTime clientLDT = LocalDateTime.now();
-            String encodedServerTD = hm.getParameter("TimeStamp");
-            byte[] decodedServerTD = Base64.getDecoder().decode(encodedServerTD);
-            decodedServerTD = hc.decrypt(decodedServerTD);
-            String serverTD = new String(decodedServerTD, StandardCharsets.UTF_8);
-            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-            LocalDateTime serverLDT = LocalDateTime.parse(serverTD, dtf);
-            Duration duration = Duration.between(serverLDT, clientLDT);
-            long secondsDiff = duration.getSeconds();
-            if(Math.abs(secondsDiff) > 10) {
-                throw new DateTimeException("");
+            try {
+                return tunnel.open("");
             }
-
-            HandshakeDigest hd = new HandshakeDigest();
-            String encodedSign = hm.getParameter("Signature");
-            byte[] decodedSign = Base64.getDecoder().decode(encodedSign);
-            byte[] serverDigest = hc.decrypt(decodedSign);
-            hd.update(ServerHello);
-            byte[] localDigest = hd.digest();
-            if(!(Arrays.equals(localDigest, serverDigest))) {
-                throw new ArrayStoreException(); // might be bad programming but I want a unique Exception to catch
+            catch(IOException ioe) {
+                tunnel = null; // output failed, try once more on a new session
             }
         }
-        catch(IOException | ClassNotFoundException e) {
-            System.err.printf("Error receiving ServerFinished from server\n");
-            System.exit(1);
-        }
-        catch(NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
-            System.err.printf("Error decrypting ServerFinished from server\n");
-            System.exit(1);
-        }
-        catch(DateTimeException dte) {
-            System.err.printf("ServerFinished message too old (10 seconds)\n");
-            System.exit(1);
-        }
-        catch(ArrayStoreException ase) {
-            System.err.printf("Integrity check failed\n");
-            System.exit(1);
-        }
+        return null;
     }
 
-    // send ClientFinished message
-    private static void sendClientFinished(Socket socket, byte[] privateKey) {
-        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.CLIENTFINISHED);
+    // port forwarding: accept connections on the loopback interface and tunnel each one as a stream of
+    // a multiplexed session to the server, which connects it to its --target
+    // the session is handshaked once and shared by all connections, so short connections don't pay
+    // for a handshake each; every connection is forwarded on a virtual thread of its own, which also
+    // opens its stream, so a slow handshake doesn't hold up accepting new connections
+    private static void listenLoop(int listenPort, String host, int port, HandshakeCertificate clientCert, HandshakeCertificate caCert, byte[] key) {
+        ServerSocket serverSocket;
         try {
-            HandshakeDigest hd = new HandshakeDigest();
-            HandshakeCrypto hc = new HandshakeCrypto(privateKey);
-            hd.update(ClientHello);
-            hd.update(Session);
-            byte[] digest = hd.digest();
-            byte[] signedDigest = hc.encrypt(digest);
-            String encodedDigest = Base64.getEncoder().encodeToString(signedDigest);
-            hm.put("Signature", encodedDigest);
-
-            LocalDateTime ldt = LocalDateTime.now();
-            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-            String dateTime = ldt.format(dtf);
-            byte[] dtArray = dateTime.getBytes(StandardCharsets.UTF_8);
-            byte[] signedDT = hc.encrypt(dtArray);
-            String encodedDT = Base64.getEncoder().encodeToString(signedDT);
-            hm.put("TimeStamp", encodedDT);
-            
-            hm.send(socket);
-        }
-        catch(NoSuchAlgorithmException nsae) {
-            System.err.printf("Error creating digest\n");    
-            System.exit(1);
-        }
-        catch(InvalidKeySpecException ikse) {
-            System.err.printf("Error instatiating private key\n");
-            System.exit(1);
-        }
-        catch(NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
-            System.err.printf("Error encrypting digest\n");
-            System.exit(1);
+            serverSocket = new ServerSocket(listenPort, 50, InetAddress.getLoopbackAddress());
         }
         catch(IOException ioe) {
-            System.err.printf("Error sending ClientFinished\n");
+            System.err.printf("Error listening on port %d\n", listenPort);
             System.exit(1);
+            return;
+        }
+        long count = 0;
+        while(true) {
+            Socket local;
+            try {
+                local = serverSocket.accept();
+                local.setTcpNoDelay(true);
+            }
+            catch(IOException ioe) {
+                System.err.printf("Error accepting connection on port %d\n", listenPort);
+                continue;
+            }
+            Thread.ofVirtual().name("connection-" + ++count).start(() -> {
+                try(local) {
+                    MuxStream stream = openStream(host, port, clientCert, caCert, key);
+                    if(stream == null) {
+                        System.err.printf("No tunnel to %s:%d for %s\n", host, port, local.getRemoteSocketAddress());
+                        return;
+                    }
+                    Forwarder.forwardStream(local, stream);
+                    stream.close();
+                }
+                catch(IOException ioe) {
+                    System.err.printf("Stream forwarding error on %s\n", local.getRemoteSocketAddress());
+                }
+            });
         }
     }
 
@@ -325,6 +326,42 @@ public class NetPipeClient {
         String usercertPath = arguments.get("usercert");
         String cacertPath = arguments.get("cacert");
         String privatekeyPath = arguments.get("key");
+        String cipherPath = arguments.get("cipherpath");
+        if(!cipherPath.equals("stream") && !cipherPath.equals("buffer") && !cipherPath.equals("parallel")) {
+            usage();
+        }
+        String transport = arguments.get("transport");
+        if(!transport.equals(SessionParameters.CTR) && !transport.equals(SessionParameters.GCM)) {
+            usage();
+        }
+        String compression = arguments.get("compression");
+        if(!compression.equals(SessionParameters.NONE) && !compression.equals(SessionParameters.DEFLATE)) {
+            usage();
+        }
+        String integrity = arguments.get("integrity");
+        if(!integrity.equals(SessionParameters.NONE) && !integrity.equals(SessionParameters.SHA256)) {
+            usage();
+        }
+        String keyExchange = arguments.get("keyexchange");
+        if(!keyExchange.equals(SessionParameters.RSA) && !keyExchange.equals(SessionParameters.ECDHE)) {
+            usage();
+        }
+        String handshakeMode = arguments.get("handshake");
+        if(!handshakeMode.equals("lockstep") && !handshakeMode.equals("pipelined")) {
+            usage();
+        }
+        String handshakeVersion = arguments.get("handshakeversion");
+        if(!handshakeVersion.equals("1") && !handshakeVersion.equals("2")) {
+            usage();
+        }
+        if(handshakeMode.equals("pipelined") && (arguments.get("servercert") == null || !keyExchange.equals(SessionParameters.RSA) || arguments.get("ticketfile") != null || !compression.equals(SessionParameters.NONE) || !integrity.equals(SessionParameters.NONE) || arguments.get("listen") != null)) {
+            System.err.println("The pipelined handshake needs --servercert and the rsa key exchange, and does not use tickets, compression, the integrity check or --listen");
+            System.exit(1);
+        }
+        if(!integrity.equals(SessionParameters.NONE) && arguments.get("listen") != null) {
+            System.err.println("The integrity check is not used with --listen, which multiplexes connections over one session");
+            System.exit(1);
+        }
 
         HandshakeCertificate clientCert = initCert(usercertPath);
         HandshakeCertificate caCert = initCert(cacertPath);
@@ -338,36 +375,54 @@ public class NetPipeClient {
             System.exit(1);
         }
 
+        // metrics are always counted, and printed to stderr if asked for
+        long metricsInterval = Long.parseLong(arguments.get("metricsinterval"));
+        if(metricsInterval > 0) {
+            Metrics.startReporting(metricsInterval, System.err);
+        }
+        if(arguments.get("listen") != null) {
+            listenLoop(Integer.parseInt(arguments.get("listen")), host, port, clientCert, caCert, key);
+        }
+
         Socket socket = initSocket(host, port);
         if(socket == null) {
             System.exit(1);
         }
         
-        sendClientHello(socket, clientCert);
-        if(ClientHello == null) {
-            System.exit(1);
+        SessionParameters parameters = newParameters();
+        ClientHandshake handshake = new ClientHandshake(socket, clientCert, caCert, key, parameters);
+        if(handshakeMode.equals("pipelined")) {
+            HandshakeCertificate serverCert = initCert(arguments.get("servercert"));
+            if(serverCert == null) {
+                System.exit(1);
+            }
+            handshake.setPipelined(serverCert);
         }
-        HandshakeCertificate serverCert = recvServerHello(socket, caCert);
-        if(serverCert == null || ServerHello == null) {
-            System.exit(1);
+        String ticketPath = arguments.get("ticketfile");
+        if(ticketPath != null) {
+            handshake.setTicket(SessionTicket.load(ticketPath));
+            handshake.setRequestTicket(true);
         }
-        SessionCipher sessionCipher = sendSession(socket, serverCert);
-        if(sessionCipher == null || Session == null) {
+        SessionCipher sessionCipher = handshake.run();
+        if(sessionCipher == null) {
             System.exit(1);
         }
-        recvServerFinished(socket, serverCert);
-        sendClientFinished(socket, key);
+        if(ticketPath != null) {
+            saveTicket(ticketPath, handshake.getNewTicket());
+        }
 
         try {
-            OutputStream os = sessionCipher.openEncryptedOutputStream(socket.getOutputStream());
-            InputStream is = sessionCipher.openDecryptedInputStream(socket.getInputStream());
-            Forwarder.forwardStreams(System.in, System.out, is, os, socket);
+            InputStream netinput = handshake.isPending() ? handshake.openVerifiedInputStream() : null;
+            Forwarder.forwardSession(System.in, System.out, socket, netinput, sessionCipher, parameters);
+            if(metricsInterval > 0) {
+                System.err.print(Metrics.snapshot());
+            }
         }
         catch(IOException ioe) {
             System.err.println("Stream forwarding error\n");
             System.exit(1);
         }
-        catch(NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+        catch(GeneralSecurityException gse) {
             System.err.println("Error opening encrypted and/or decrypted stream");
             System.exit(1);
         }
@@ -1,33 +1,35 @@
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
-import java.security.cert.CertificateEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
-import java.security.InvalidAlgorithmParameterException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SignatureException;
-import java.security.spec.InvalidKeySpecException;
-import java.time.DateTimeException;
-import java.time.Duration;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
-import java.util.Base64;
-import javax.crypto.BadPaddingException;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
 
 
 public class NetPipeServer {
     
     private static String PROGRAMNAME = NetPipeServer.class.getSimpleName();
     private static Arguments arguments;
-    private static byte[] ClientHello = null;
-    private static byte[] ServerHello = null;
-    private static byte[] Session = null;
+    private static AtomicLong connectionCount = new AtomicLong();
+    private static NioForwarder nioForwarder = null;
+    private static WritableByteChannel stdoutChannel = Channels.newChannel(System.out);
+    private static TicketKeys ticketKeys = null;
+    private static CertificateCache certificateCache = null;
+    private static MetricsServer metricsServer = null;
+    private static BandwidthScheduler scheduler = null;
+    private static InetSocketAddress target = null;
 
     // usage: explain how to use the program, then exit with failure status
     private static void usage() {
@@ -39,6 +41,23 @@ public class NetPipeServer {
         System.err.println(indent + "--usercert=<filename>");
         System.err.println(indent + "--cacert=<filename>");
         System.err.println(indent + "--key=<filename>");
+        System.err.println(indent + "--cipherpath=<stream|buffer|parallel>");
+        System.err.println(indent + "--recordsize=<bytes>");
+        System.err.println(indent + "--compression=<deflate|none>");
+        System.err.println(indent + "--integrity=<sha256|none>");
+        System.err.println(indent + "--handshakeversion=<1|2>");
+        System.err.println(indent + "--mode=<single|multi>");
+        System.err.println(indent + "--engine=<stream|nio>");
+        System.err.println(indent + "--target=<host:port>");
+        System.err.println(indent + "--eventloops=<count>");
+        System.err.println(indent + "--ticketlifetime=<seconds>");
+        System.err.println(indent + "--ticketrotation=<seconds>");
+        System.err.println(indent + "--maxtickets=<count>");
+        System.err.println(indent + "--certcache=<entries>");
+        System.err.println(indent + "--bandwidth=<bytes per second>");
+        System.err.println(indent + "--ratelimits=<filename>");
+        System.err.println(indent + "--metricsinterval=<seconds>");
+        System.err.println(indent + "--metricsport=<portnumber>");
 
         System.exit(1);
     }
@@ -50,6 +69,37 @@ public class NetPipeServer {
         arguments.setArgumentSpec("usercert", "filename");
         arguments.setArgumentSpec("cacert", "filename");
         arguments.setArgumentSpec("key", "filename");
+        arguments.setArgumentSpec("cipherpath", "stream|buffer|parallel");
+        arguments.setDefault("cipherpath", "stream");
+        arguments.setArgumentSpec("recordsize", "bytes");
+        arguments.setDefault("recordsize", Integer.toString(RecordOutputStream.DEFAULTRECORDSIZE));
+        arguments.setArgumentSpec("compression", "deflate|none");
+        arguments.setDefault("compression", SessionParameters.DEFLATE);
+        arguments.setArgumentSpec("integrity", "sha256|none");
+        arguments.setDefault("integrity", SessionParameters.SHA256);
+        arguments.setArgumentSpec("handshakeversion", "1|2");
+        arguments.setDefault("handshakeversion", Integer.toString(SessionParameters.LATESTVERSION));
+        arguments.setArgumentSpec("mode", "single|multi");
+        arguments.setDefault("mode", "single");
+        arguments.setArgumentSpec("engine", "stream|nio");
+        arguments.setArgumentSpec("target", "host:port");
+        arguments.setDefault("engine", "stream");
+        arguments.setArgumentSpec("eventloops", "count");
+        arguments.setDefault("eventloops", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        arguments.setArgumentSpec("ticketlifetime", "seconds");
+        arguments.setDefault("ticketlifetime", "3600");
+        arguments.setArgumentSpec("ticketrotation", "seconds");
+        arguments.setDefault("ticketrotation", "3600");
+        arguments.setArgumentSpec("maxtickets", "count");
+        arguments.setDefault("maxtickets", "100000");
+        arguments.setArgumentSpec("certcache", "entries");
+        arguments.setDefault("certcache", "1000");
+        arguments.setArgumentSpec("bandwidth", "bytes per second");
+        arguments.setDefault("bandwidth", "0");
+        arguments.setArgumentSpec("ratelimits", "filename");
+        arguments.setArgumentSpec("metricsinterval", "seconds");
+        arguments.setDefault("metricsinterval", "0");
+        arguments.setArgumentSpec("metricsport", "portnumber");
 
         try {
         arguments.loadArguments(args);
@@ -107,17 +157,6 @@ public class NetPipeServer {
         }
     }
 
-    // verify client certificate against CA
-    private static void verifyClientCert(HandshakeCertificate client, HandshakeCertificate CA) {
-        try {
-            client.verify(CA);
-        }
-        catch(CertificateException | NoSuchAlgorithmException | InvalidKeyException | SignatureException | NoSuchProviderException e) {
-            System.err.printf("Error verifying client certificate");
-            System.exit(1);
-        }
-    }
-
     // verify server certificate against CA
     private static void verifyServerCert(HandshakeCertificate server, HandshakeCertificate CA) {
         try {
@@ -130,9 +169,10 @@ public class NetPipeServer {
     }
 
     // initiate server socket
+    // opened through a ServerSocketChannel, so that accepted sockets have a channel for the nio engine
     private static ServerSocket initServerSocket(int port) {
         try {
-            ServerSocket serverSocket = new ServerSocket(port);
+            ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(port)).socket();
 
             return serverSocket;
         }
@@ -146,6 +186,7 @@ public class NetPipeServer {
     private static Socket acceptSocket(ServerSocket serverSocket, int port) {
         try {
             Socket socket = serverSocket.accept();
+            socket.setTcpNoDelay(true); // see NetPipeClient.initSocket
 
             return socket;
         } catch (IOException ioe) {
@@ -154,175 +195,139 @@ public class NetPipeServer {
         }
     }
 
-    // receive ClientHello message and verify client certificate
-    private static HandshakeCertificate recvClientHello(Socket socket, HandshakeCertificate CA) {
-        try {
-            HandshakeMessage hm = HandshakeMessage.recv(socket);
-            if(hm.getType().getCode() != 1) {
-                throw new IOException();
-            }
-            String encodedCert = hm.getParameter("Certificate");
-            byte[] decodedCert = Base64.getDecoder().decode(encodedCert);
-            HandshakeCertificate clientCert = new HandshakeCertificate(decodedCert);
-            verifyClientCert(clientCert, CA);
-            ClientHello = hm.getBytes();
-
-            return clientCert;
-        }
-        catch(IOException | ClassNotFoundException e) {
-            System.err.printf("Error receiving ClientHello from client\n");
-            return null;
-        }
-        catch(CertificateException ce) {
-            System.err.printf("Error reading client certificate\n");
-            return null;
-        }
+    // local session settings for a new connection, the handshake adds the negotiated ones
+    private static SessionParameters newParameters() {
+        SessionParameters parameters = new SessionParameters(false);
+        parameters.setCipherPath(arguments.get("cipherpath"));
+        parameters.setRecordSize(Integer.parseInt(arguments.get("recordsize")));
+        parameters.setCompression(arguments.get("compression"));
+        parameters.setIntegrity(arguments.get("integrity"));
+        parameters.setMultiplex(arguments.get("mode").equals("multi"));
+        parameters.setHandshakeVersion(Integer.parseInt(arguments.get("handshakeversion")));
+
+        return parameters;
     }
 
-    // send ServerHello message
-    private static void sendServerHello(Socket socket, HandshakeCertificate servercert) {
-        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.SERVERHELLO);
+    // run handshake and forwarding for one accepted connection
+    // a failure only closes this connection, other connections are not affected
+    // in multi mode, data from the client goes to stdout and nothing is read from stdin
+    // with the nio engine, the connection is handed over to an event loop after the handshake,
+    // except for gcm, compressed, integrity-checked and bandwidth-limited sessions, which need the record layer,
+    // compression stage, integrity trailers or scheduled writes of the stream engine
+    // a multiplexed session is served stream by stream, see serveStreams
+    private static void serveConnection(Socket clientSocket, ServerCredentials credentials, HandshakeCertificate caCert) {
+        boolean handedOver = false;
+        SessionParameters parameters = newParameters();
         try {
-            X509Certificate cert = servercert.getCertificate();
-            byte[] certBytes = cert.getEncoded();
-            String encodedCert = Base64.getEncoder().encodeToString(certBytes);
-            hm.put("Certificate", encodedCert);
-            ServerHello = hm.getBytes();
-
-            hm.send(socket);
-        }
-        catch(CertificateEncodingException cee) {
-            System.err.printf("Error getting encoded certificate\n");
-            System.exit(1);
+            ServerHandshake handshake = new ServerHandshake(clientSocket, credentials, caCert, parameters);
+            handshake.setTicketKeys(ticketKeys);
+            handshake.setCertificateCache(certificateCache);
+            SessionCipher sessionCipher = handshake.run();
+            if(sessionCipher == null) {
+                System.err.printf("Handshake with %s failed\n", clientSocket.getRemoteSocketAddress());
+                return;
+            }
+            scheduleConnection(parameters, handshake);
+            if(parameters.isMultiplex()) {
+                serveStreams(clientSocket, sessionCipher, parameters);
+                return;
+            }
+            if(nioForwarder != null && parameters.getTransport().equals(SessionParameters.CTR) && parameters.getCompression().equals(SessionParameters.NONE) && parameters.getIntegrity().equals(SessionParameters.NONE) && parameters.getFlow() == null) {
+                Cipher encrypter = sessionCipher.openEncrypter();
+                Cipher decrypter = sessionCipher.openDecrypter();
+                nioForwarder.forward(clientSocket.getChannel(), encrypter, decrypter, null, stdoutChannel, null);
+                handedOver = true;
+                return;
+            }
+            Forwarder.forwardSession(InputStream.nullInputStream(), System.out, clientSocket, sessionCipher, parameters);
         }
         catch(IOException ioe) {
-            System.err.printf("Error sending ServerHello\n");
-            System.exit(1);
-        }
-    }
-
-    // receive Session message and get session key + IV
-    private static SessionCipher recvSession(Socket socket, byte[] privateKey) {
-        try {
-            HandshakeMessage hm = HandshakeMessage.recv(socket);
-            HandshakeCrypto hc = new HandshakeCrypto(privateKey);
-            if(hm.getType().getCode() != 3) {
-                throw new IOException();
-            }          
-            String encodedSK = hm.getParameter("SessionKey");
-            String encodedIV = hm.getParameter("SessionIV");
-            byte[] decodedSK = Base64.getDecoder().decode(encodedSK);
-            byte[] decodedIV = Base64.getDecoder().decode(encodedIV);
-            decodedSK = hc.decrypt(decodedSK);
-            decodedIV = hc.decrypt(decodedIV);
-            SessionKey sk = new SessionKey(decodedSK);
-            SessionCipher sc = new SessionCipher(sk, decodedIV);
-            Session = hm.getBytes();
-
-            return sc;
+            System.err.printf("Stream forwarding error on %s\n", clientSocket.getRemoteSocketAddress());
         }
-        catch(IOException | ClassNotFoundException e) {
-            System.err.printf("Error receiving Session from client\n");
-            return null;
+        catch(GeneralSecurityException gse) {
+            System.err.println("Error opening encrypted and/or decrypted stream");
         }
-        catch(NoSuchAlgorithmException | InvalidKeySpecException e) {
-            System.err.printf("Error instantiating private key\n");
-            return null;
+        catch(RuntimeException re) {
+            System.err.printf("Malformed handshake from %s\n", clientSocket.getRemoteSocketAddress());
+            Metrics.recordFailure("server: malformed handshake");
         }
-        catch(NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
-            System.err.printf("Error using private key\n");
-            return null;
+        finally {
+            if(parameters.getFlow() != null) {
+                parameters.getFlow().close();
+            }
+            if(!handedOver) {
+                try {
+                    clientSocket.close();
+                }
+                catch(IOException ioe) {}
+            }
         }
     }
 
-    // send ServerFinished message
-    private static void sendServerFinished(Socket socket, byte[] privateKey) {
-        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.SERVERFINISHED);
-        try {
-            HandshakeDigest hd = new HandshakeDigest();
-            HandshakeCrypto hc = new HandshakeCrypto(privateKey);
-            hd.update(ServerHello);
-            byte[] digest = hd.digest();
-            byte[] signedDigest = hc.encrypt(digest);
-            String encodedDigest = Base64.getEncoder().encodeToString(signedDigest);
-            hm.put("Signature", encodedDigest);
-
-            LocalDateTime ldt = LocalDateTime.now();
-            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-            String dateTime = ldt.format(dtf);
-            byte[] dtArray = dateTime.getBytes(StandardCharsets.UTF_8);
-            byte[] signedDT = hc.encrypt(dtArray);
-            String encodedDT = Base64.getEncoder().encodeToString(signedDT);
-            hm.put("TimeStamp", encodedDT);
-
-            hm.send(socket);
-        }
-        catch(NoSuchAlgorithmException nsae) {
-            System.err.printf("Error creating digest\n");   
-            System.exit(1);
-        }
-        catch(InvalidKeySpecException ikse) {
-            System.err.printf("Error instatiating private key\n");
-            System.exit(1);
-        }
-        catch(NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
-            System.err.printf("Error encrypting digest\n");
-            System.exit(1);
-        }
-        catch(IOException ioe) {
-            System.err.printf("Error sending ServerFinished\n");
-            System.exit(1);
+    // with a bandwidth scheduler, writes of the connection to the client wait for its share, at the rate for its CN
+    // the connection is named after the thread that serves it, as in Metrics
+    private static void scheduleConnection(SessionParameters parameters, ServerHandshake handshake) {
+        if(scheduler != null) {
+            parameters.setFlow(scheduler.open(Thread.currentThread().getName(), handshake.getClientName()));
         }
     }
 
-    // receive ClientFinished message and check integrity and authentication of handshake
-    private static void recvClientFinished(Socket socket, HandshakeCertificate clientCert) {
-        HandshakeCrypto hc = new HandshakeCrypto(clientCert);
-        try {
-            HandshakeMessage hm = HandshakeMessage.recv(socket);
-            if(hm.getType().getCode() != 4) {
-                throw new IOException();
+    // serve the streams of a multiplexed session, each like a connection of its own:
+    // data from the stream goes to stdout and nothing is sent back, or with --target, every stream is
+    // connected to the target (port forwarding)
+    // the client closes the session when its streams are done; this side closes it once all stream threads are over
+    private static void serveStreams(Socket clientSocket, SessionCipher sessionCipher, SessionParameters parameters) throws IOException, GeneralSecurityException {
+        Multiplexer multiplexer = Forwarder.openMultiplexer(clientSocket, sessionCipher, parameters);
+        ThreadFactory factory = Thread.ofVirtual().name(Thread.currentThread().getName() + "-stream-", 1).factory();
+        try(ExecutorService streams = Executors.newThreadPerTaskExecutor(factory)) {
+            MuxStream stream;
+            while((stream = multiplexer.accept()) != null) {
+                MuxStream accepted = stream;
+                if(target != null) {
+                    streams.execute(() -> forwardToTarget(accepted));
+                }
+                else {
+                    streams.execute(() -> Forwarder.forwardStream(InputStream.nullInputStream(), System.out, accepted));
+                }
             }
+        }
+        catch(InterruptedException ie) {}
+        multiplexer.close();
+    }
 
-            LocalDateTime serverLDT = LocalDateTime.now();
-            String encodedClientTD = hm.getParameter("TimeStamp");
-            byte[] decodedClientTD = Base64.getDecoder().decode(encodedClientTD);
-            decodedClientTD = hc.decrypt(decodedClientTD);
-            String clientTD = new String(decodedClientTD, StandardCharsets.UTF_8);
-            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-            LocalDateTime clientLDT = LocalDateTime.parse(clientTD, dtf);
-            Duration duration = Duration.between(clientLDT, serverLDT);
-            long secondsDiff = duration.getSeconds();
-            if(Math.abs(secondsDiff) > 10) {
-                throw new DateTimeException("");
+    // connect a stream to the target and forward between them
+    // if the target can't be reached, the stream is reset, which the client sees as a closed connection
+    private static void forwardToTarget(MuxStream stream) {
+        try(Socket socket = new Socket()) {
+            try {
+                socket.connect(target);
+                socket.setTcpNoDelay(true);
             }
-
-            HandshakeDigest hd = new HandshakeDigest();
-            String encodedSign = hm.getParameter("Signature");
-            byte[] decodedSign = Base64.getDecoder().decode(encodedSign);
-            byte[] clientDigest = hc.decrypt(decodedSign);
-            hd.update(ClientHello);
-            hd.update(Session);
-            byte[] localDigest = hd.digest();
-            if(!(Arrays.equals(localDigest, clientDigest))) {
-                throw new ArrayStoreException(); // might be bad programming but I want a unique Exception to catch
+            catch(IOException ioe) {
+                System.err.printf("Can't connect to target %s\n", target);
+                Metrics.recordFailure("target: " + ioe.getClass().getSimpleName());
+                stream.reset();
+                return;
             }
+            Forwarder.forwardStream(socket, stream);
+            stream.close();
         }
-        catch(IOException | ClassNotFoundException e) {
-            System.err.printf("Error receiving ClientFinished from client\n");
-            System.exit(1);
-        }
-        catch(NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException e) {
-            System.err.printf("Error decrypting ClientFinished from client\n");
-            System.exit(1);
-        }
-        catch(DateTimeException dte) {
-            System.err.printf("ClientFinished message too old (10 seconds)\n");
-            System.exit(1);
+        catch(IOException ioe) {
+            System.err.printf("Stream forwarding error to %s\n", target);
         }
-        catch(ArrayStoreException ase) {
-            System.err.printf("Integrity check failed\n");
-            System.exit(1);
+    }
+
+    // accept loop for multi mode
+    // every connection gets its own virtual thread for handshake and forwarding,
+    // and shares the credentials and CA certificate loaded at startup
+    private static void acceptLoop(ServerSocket serverSocket, int port, ServerCredentials credentials, HandshakeCertificate caCert) {
+        while(true) {
+            Socket clientSocket = acceptSocket(serverSocket, port);
+            if(clientSocket == null) {
+                continue;
+            }
+            String name = "connection-" + connectionCount.incrementAndGet();
+            Thread.ofVirtual().name(name).start(() -> serveConnection(clientSocket, credentials, caCert));
         }
     }
 
@@ -335,6 +340,39 @@ public class NetPipeServer {
         String usercertPath = arguments.get("usercert");
         String cacertPath = arguments.get("cacert");
         String privatekeyPath = arguments.get("key");
+        String mode = arguments.get("mode");
+        String engine = arguments.get("engine");
+        if(!mode.equals("single") && !mode.equals("multi")) {
+            usage();
+        }
+        if(!engine.equals("stream") && !engine.equals("nio")) {
+            usage();
+        }
+        String cipherPath = arguments.get("cipherpath");
+        if(!cipherPath.equals("stream") && !cipherPath.equals("buffer") && !cipherPath.equals("parallel")) {
+            usage();
+        }
+        if(!arguments.get("compression").equals(SessionParameters.DEFLATE) && !arguments.get("compression").equals(SessionParameters.NONE)) {
+            usage();
+        }
+        if(!arguments.get("integrity").equals(SessionParameters.SHA256) && !arguments.get("integrity").equals(SessionParameters.NONE)) {
+            usage();
+        }
+        if(!arguments.get("handshakeversion").equals("1") && !arguments.get("handshakeversion").equals("2")) {
+            usage();
+        }
+        if(arguments.get("target") != null) {
+            String[] hostPort = arguments.get("target").split(":(?=[0-9]+$)");
+            if(hostPort.length != 2 || !mode.equals("multi")) {
+                System.err.println("--target needs host:port and --mode=multi");
+                System.exit(1);
+            }
+            target = new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+        }
+        if(engine.equals("nio") && !mode.equals("multi")) {
+            System.err.println("The nio engine needs --mode=multi (stdin can't be used with a selector)");
+            System.exit(1);
+        }
 
         HandshakeCertificate serverCert = initCert(usercertPath);
         HandshakeCertificate caCert = initCert(cacertPath);
@@ -347,41 +385,110 @@ public class NetPipeServer {
         if(key == null) {
             System.exit(1);
         }
+        // the private key is parsed once, handshakes share it with the certificate
+        ServerCredentials credentials = null;
+        try {
+            credentials = new ServerCredentials(serverCert, key);
+        }
+        catch(GeneralSecurityException gse) {
+            System.err.printf("Error instantiating private key %s\n", privatekeyPath);
+            System.exit(1);
+        }
         
         ServerSocket serverSocket = initServerSocket(port);
         if(serverSocket == null) {
             System.exit(1);
         }
+        if(engine.equals("nio")) {
+            try {
+                nioForwarder = new NioForwarder(Integer.parseInt(arguments.get("eventloops")));
+            }
+            catch(IOException ioe) {
+                System.err.println("Error starting event loops");
+                System.exit(1);
+            }
+        }
+        int certcache = Integer.parseInt(arguments.get("certcache"));
+        if(certcache > 0) {
+            certificateCache = new CertificateCache(caCert, certcache);
+            Metrics.setCertificateCache(certificateCache);
+        }
+        // ticket keys live in this process only, tickets are valid until the server is restarted
+        long ticketLifetime = Long.parseLong(arguments.get("ticketlifetime"));
+        if(ticketLifetime > 0) {
+            try {
+                ticketKeys = new TicketKeys(ticketLifetime, Long.parseLong(arguments.get("ticketrotation")), Integer.parseInt(arguments.get("maxtickets")));
+            }
+            catch(GeneralSecurityException gse) {
+                System.err.println("Error creating session ticket key");
+                System.exit(1);
+            }
+        }
+        // bandwidth is only scheduled when there is a limit of some kind
+        long bandwidth = Long.parseLong(arguments.get("bandwidth"));
+        if(bandwidth < 0) {
+            usage();
+        }
+        Map<String, Long> limits = new HashMap<>();
+        if(arguments.get("ratelimits") != null) {
+            limits = BandwidthScheduler.loadLimits(arguments.get("ratelimits"));
+            if(limits == null) {
+                System.err.printf("Error reading rate limits %s\n", arguments.get("ratelimits"));
+                System.exit(1);
+            }
+        }
+        if(bandwidth > 0 || arguments.get("ratelimits") != null) {
+            scheduler = new BandwidthScheduler(bandwidth, limits);
+        }
+        // metrics are always counted, and printed to stderr if asked for
+        long metricsInterval = Long.parseLong(arguments.get("metricsinterval"));
+        if(metricsInterval > 0) {
+            Metrics.startReporting(metricsInterval, System.err);
+        }
+        if(arguments.get("metricsport") != null) {
+            int metricsPort = Integer.parseInt(arguments.get("metricsport"));
+            try {
+                metricsServer = new MetricsServer(metricsPort);
+                metricsServer.setScheduler(scheduler);
+                metricsServer.start();
+            }
+            catch(IOException ioe) {
+                System.err.printf("Error listening for metrics on port %d\n", metricsPort);
+                System.exit(1);
+            }
+        }
+        if(mode.equals("multi")) {
+            acceptLoop(serverSocket, port, credentials, caCert);
+        }
         Socket clientSocket = acceptSocket(serverSocket, port);
         if(clientSocket == null) {
             System.exit(1);
         }
 
-        HandshakeCertificate clientCert = recvClientHello(clientSocket, caCert);
-        if(clientCert == null || ClientHello == null) {
+        SessionParameters parameters = newParameters();
+        ServerHandshake handshake = new ServerHandshake(clientSocket, credentials, caCert, parameters);
+        handshake.setTicketKeys(ticketKeys);
+        handshake.setCertificateCache(certificateCache);
+        SessionCipher sessionCipher = handshake.run();
+        if(sessionCipher == null) {
             System.exit(1);
         }
-        sendServerHello(clientSocket, serverCert);
-        if(ServerHello == null) {
-            System.exit(1);
-        }
-        SessionCipher sessionCipher = recvSession(clientSocket, key);
-        if(sessionCipher == null || Session == null) {
-            System.exit(1);
-        }
-        sendServerFinished(clientSocket, key);
-        recvClientFinished(clientSocket, clientCert);
+        scheduleConnection(parameters, handshake);
 
         try {
-            OutputStream os = sessionCipher.openEncryptedOutputStream(clientSocket.getOutputStream());
-            InputStream is = sessionCipher.openDecryptedInputStream(clientSocket.getInputStream());
-            Forwarder.forwardStreams(System.in, System.out, is, os, clientSocket);
+            Forwarder.forwardSession(System.in, System.out, clientSocket, sessionCipher, parameters);
+            if(metricsInterval > 0) {
+                System.err.print(Metrics.snapshot());
+            }
+            if(metricsServer != null) {
+                metricsServer.stop();
+            }
         }
         catch(IOException ioe) {
             System.err.println("Stream forwarding error\n");
             System.exit(1);
         }
-        catch(NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+        catch(GeneralSecurityException gse) {
             System.err.println("Error opening encrypted and/or decrypted stream");
             System.exit(1);
         }
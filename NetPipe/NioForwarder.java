@@ -0,0 +1,438 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+
+// non-blocking alternative to Forwarder
+// a fixed set of event loop threads, each with its own Selector, drives the reads, decrypts,
+// encrypts and writes of every connection, so the thread count does not grow with the connection count
+// a local output that can't be selected (stdout) is written by a thread of its own (see QueuedOutput),
+// so a slow reader of stdout holds up the connections that write to it, not the event loops
+public class NioForwarder {
+
+    private static int BUFFERSIZE = 16 * 1024;
+    private static int MAXREADS = 16; // reads per ready event, so one busy connection can't starve the others
+
+    private EventLoop[] loops;
+    private AtomicInteger next = new AtomicInteger();
+    private ConcurrentHashMap<WritableByteChannel, QueuedOutput> queuedOutputs = new ConcurrentHashMap<>();
+    private static AtomicInteger activeConnections = new AtomicInteger();
+
+    // one direction of a connection: read from source, run data through cipher, write to sink
+    // both buffers are direct, so data goes from socket to cipher to socket without heap copies
+    // they come from the shared direct BufferPool and go back there when the connection closes
+    // when the source reaches end of file and all data is written, the sink is shut down
+    private static class Flow {
+        private ReadableByteChannel source;
+        private WritableByteChannel sink;
+        private Cipher cipher;
+        private ByteBuffer readBuffer = BufferPool.DIRECT.acquire(BUFFERSIZE);
+        private ByteBuffer writeBuffer = BufferPool.DIRECT.acquire(BUFFERSIZE);
+        private boolean eof = false;
+        private boolean finished = false;
+        private Metrics.Counter counter;
+
+        Flow(ReadableByteChannel source, WritableByteChannel sink, Cipher cipher, Metrics.Counter counter) {
+            this.source = source;
+            this.sink = sink;
+            this.cipher = cipher;
+            this.counter = counter;
+            this.writeBuffer.flip(); // nothing pending
+            if(source == null) {
+                eof = true;
+            }
+        }
+
+        // move as much data as possible without blocking
+        // stop when the sink can't take more or the source has nothing more right now
+        void pump() throws IOException {
+            if(writeBuffer.hasRemaining()) {
+                sink.write(writeBuffer);
+                if(writeBuffer.hasRemaining()) {
+                    return;
+                }
+            }
+            int reads = 0;
+            while(!eof && reads++ < MAXREADS) {
+                readBuffer.clear();
+                int nread = source.read(readBuffer);
+                if(nread == -1) {
+                    eof = true;
+                    break;
+                }
+                if(nread == 0) {
+                    break;
+                }
+                counter.add(nread);
+                readBuffer.flip();
+                writeBuffer.clear();
+                SessionCipher.update(cipher, readBuffer, writeBuffer);
+                writeBuffer.flip();
+                sink.write(writeBuffer);
+                if(writeBuffer.hasRemaining()) {
+                    return;
+                }
+            }
+            if(eof && !writeBuffer.hasRemaining() && !finished) {
+                finished = true;
+                shutdownOutput(sink);
+            }
+        }
+
+        boolean wantsRead() {
+            return !eof && !writeBuffer.hasRemaining();
+        }
+
+        boolean wantsWrite() {
+            return writeBuffer.hasRemaining();
+        }
+
+        void release() {
+            BufferPool.DIRECT.release(readBuffer);
+            BufferPool.DIRECT.release(writeBuffer);
+        }
+    }
+
+    // a forwarded connection: the encrypted network channel and the local plaintext channels
+    private static class Connection {
+        private SocketChannel net;
+        private ReadableByteChannel localInput;
+        private WritableByteChannel localOutput;
+        private Flow upstream;   // local input -> network
+        private Flow downstream; // network -> local output
+        private Runnable onClose;
+        private SelectionKey netKey;
+        private SelectionKey inputKey;
+        private SelectionKey outputKey;
+        private Metrics.Connection metrics;
+        private EventLoop loop;
+
+        Connection(SocketChannel net, Cipher encrypter, Cipher decrypter, ReadableByteChannel localInput, WritableByteChannel localOutput, Runnable onClose) {
+            this.net = net;
+            this.localInput = localInput;
+            this.localOutput = localOutput;
+            this.metrics = Metrics.openConnection(Thread.currentThread().getName(), net.socket().getRemoteSocketAddress());
+            this.upstream = new Flow(localInput, net, encrypter, metrics.getSent());
+            this.downstream = new Flow(net, localOutput, decrypter, metrics.getReceived());
+            this.onClose = onClose;
+            activeConnections.incrementAndGet();
+        }
+
+        // register the connection's channels with a selector
+        // a local output that is not selectable is a QueuedOutput, which wakes the connection itself
+        void register(Selector selector) throws IOException {
+            net.configureBlocking(false);
+            netKey = net.register(selector, 0, this);
+            if(localInput instanceof SelectableChannel) {
+                inputKey = registerLocal((SelectableChannel) localInput, selector);
+            }
+            if(localOutput instanceof SelectableChannel) {
+                outputKey = registerLocal((SelectableChannel) localOutput, selector);
+            }
+        }
+
+        // input and output may be the same channel, which is registered once
+        private SelectionKey registerLocal(SelectableChannel channel, Selector selector) throws IOException {
+            SelectionKey key = channel.keyFor(selector);
+            if(key != null) {
+                return key;
+            }
+            channel.configureBlocking(false);
+            return channel.register(selector, 0, this);
+        }
+
+        // run both directions, then recompute what each channel waits for
+        void process() throws IOException {
+            upstream.pump();
+            downstream.pump();
+            if(isFinished()) {
+                close();
+                return;
+            }
+            int netOps = 0;
+            if(downstream.wantsRead()) netOps |= SelectionKey.OP_READ;
+            if(upstream.wantsWrite()) netOps |= SelectionKey.OP_WRITE;
+            netKey.interestOps(netOps);
+            if(inputKey != null) {
+                inputKey.interestOps(upstream.wantsRead() ? SelectionKey.OP_READ : 0);
+            }
+            if(outputKey != null) {
+                int ops = outputKey == inputKey ? inputKey.interestOps() : 0;
+                outputKey.interestOps(ops | (downstream.wantsWrite() ? SelectionKey.OP_WRITE : 0));
+            }
+            else if(downstream.wantsWrite() && localOutput instanceof QueuedOutput) {
+                ((QueuedOutput) localOutput).whenWritable(this);
+            }
+        }
+
+        boolean isFinished() {
+            return upstream == null || (upstream.finished && downstream.finished);
+        }
+
+        // close the network channel and the local channels, except shared ones like stdout
+        void close() {
+            closeQuietly(net);
+            if(inputKey != null) {
+                closeQuietly(localInput);
+            }
+            if(outputKey != null) {
+                closeQuietly(localOutput);
+            }
+            if(upstream != null) {
+                upstream.release();
+                downstream.release();
+                upstream = null;
+                downstream = null;
+                activeConnections.decrementAndGet();
+                Metrics.closeConnection(metrics);
+            }
+            if(onClose != null) {
+                onClose.run();
+                onClose = null;
+            }
+        }
+    }
+
+    // a local output that can't be selected, shared by the connections that write to it
+    // event loops put data in a queue of at most CAPACITY bytes and never wait; when it is full, the connection
+    // waits and is processed again by its event loop once the writer thread has made room
+    // the writer thread writes the data to the channel in the order it was queued
+    private static class QueuedOutput implements WritableByteChannel {
+        private static final int CAPACITY = 1024 * 1024;
+
+        private WritableByteChannel channel;
+        private ArrayDeque<byte[]> queue = new ArrayDeque<>();     // guarded by this
+        private int queued = 0;                                     // guarded by this
+        private List<Connection> waiting = new ArrayList<>();      // guarded by this
+        private IOException failure = null;                         // guarded by this
+
+        QueuedOutput(WritableByteChannel channel) {
+            this.channel = channel;
+            Thread writer = new Thread(this::drain, "localwriter");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // queue as much of src as there is room for, return the number of bytes taken
+        public synchronized int write(ByteBuffer src) throws IOException {
+            if(failure != null) {
+                throw failure;
+            }
+            int n = Math.min(src.remaining(), CAPACITY - queued);
+            if(n == 0) {
+                return 0;
+            }
+            byte[] data = new byte[n];
+            src.get(data);
+            queue.add(data);
+            queued += n;
+            notifyAll();
+            return n;
+        }
+
+        // process the connection again when there is room, on its own event loop
+        synchronized void whenWritable(Connection connection) {
+            if(queued < CAPACITY || failure != null) {
+                connection.loop.resume(connection);
+            }
+            else if(!waiting.contains(connection)) {
+                waiting.add(connection);
+            }
+        }
+
+        private void drain() {
+            while(true) {
+                byte[] data;
+                synchronized(this) {
+                    while(queue.isEmpty()) {
+                        try {
+                            wait();
+                        }
+                        catch(InterruptedException ie) {
+                            return;
+                        }
+                    }
+                    data = queue.peek();
+                }
+                List<Connection> resumed;
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while(buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+                catch(IOException ioe) {
+                    System.err.println("Local output error in " + Thread.currentThread().getName());
+                    Metrics.recordFailure("forwarder: " + ioe.getClass().getSimpleName());
+                    synchronized(this) {
+                        failure = ioe;
+                    }
+                }
+                synchronized(this) {
+                    queue.poll();
+                    queued -= data.length;
+                    resumed = waiting;
+                    waiting = new ArrayList<>();
+                }
+                for(Connection connection : resumed) {
+                    connection.loop.resume(connection);
+                }
+                if(failure != null) {
+                    return;
+                }
+            }
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        // shared by all connections, never closed by one of them
+        public void close() {
+        }
+    }
+
+    // thread with a Selector, serving the connections assigned to it
+    private static class EventLoop implements Runnable {
+        private Selector selector;
+        private ConcurrentLinkedQueue<Connection> pending = new ConcurrentLinkedQueue<>();
+        private ConcurrentLinkedQueue<Connection> resumed = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        // hand a connection over from another thread
+        void add(Connection connection) {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        // process a connection of this loop again, from another thread
+        void resume(Connection connection) {
+            resumed.add(connection);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while(true) {
+                try {
+                    selector.select();
+                }
+                catch(IOException ioe) {
+                    System.err.println("Selector error in " + Thread.currentThread().getName());
+                    return;
+                }
+                Connection connection;
+                while((connection = pending.poll()) != null) {
+                    try {
+                        connection.loop = this;
+                        connection.register(selector);
+                        connection.process();
+                    }
+                    catch(IOException ioe) {
+                        System.err.println("Forwarder error in " + Thread.currentThread().getName());
+                        Metrics.recordFailure("forwarder: " + ioe.getClass().getSimpleName());
+                        connection.close();
+                    }
+                }
+                while((connection = resumed.poll()) != null) {
+                    if(connection.isFinished()) {
+                        continue;
+                    }
+                    try {
+                        connection.process();
+                    }
+                    catch(IOException ioe) {
+                        System.err.println("Forwarder error in " + Thread.currentThread().getName());
+                        Metrics.recordFailure("forwarder: " + ioe.getClass().getSimpleName());
+                        connection.close();
+                    }
+                }
+                for(SelectionKey key : selector.selectedKeys()) {
+                    Connection c = (Connection) key.attachment();
+                    if(!key.isValid() || c.isFinished()) {
+                        continue;
+                    }
+                    try {
+                        c.process();
+                    }
+                    catch(IOException ioe) {
+                        System.err.println("Forwarder error in " + Thread.currentThread().getName());
+                        Metrics.recordFailure("forwarder: " + ioe.getClass().getSimpleName());
+                        c.close();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+    }
+
+    // start the event loop threads
+    public NioForwarder(int nloops) throws IOException {
+        loops = new EventLoop[nloops];
+        for(int i = 0; i < nloops; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "eventloop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // forward a connection on one of the event loops and return immediately
+    // data read from localInput is encrypted and written to net, data read from net is decrypted
+    // and written to localOutput. localInput may be null, which counts as end of file right away.
+    // as in Forwarder, output to the network is shut down after end of file on localInput.
+    // onClose is called on the event loop thread when both directions are done
+    // a localOutput that is not selectable goes through one QueuedOutput for all connections that use it
+    public void forward(SocketChannel net, Cipher encrypter, Cipher decrypter, ReadableByteChannel localInput, WritableByteChannel localOutput, Runnable onClose) {
+        if(localInput != null && !(localInput instanceof SelectableChannel)) {
+            throw new IllegalArgumentException("Local input must be a selectable channel");
+        }
+        if(localOutput != null && !(localOutput instanceof SelectableChannel)) {
+            localOutput = queuedOutputs.computeIfAbsent(localOutput, QueuedOutput::new);
+        }
+        Connection connection = new Connection(net, encrypter, decrypter, localInput, localOutput, onClose);
+        loops[Math.floorMod(next.getAndIncrement(), loops.length)].add(connection);
+    }
+
+    // number of connections on the event loops
+    public static int getConnectionCount() {
+        return activeConnections.get();
+    }
+
+    // buffer bytes held by each connection on the event loops (fixed size, two buffers per direction)
+    public static int getBufferFootprint() {
+        return 4 * BufferPool.sizeClass(BUFFERSIZE);
+    }
+
+    // half-close a sink after end of file
+    // sockets get shutdownOutput, like the shutdownSocket in Forwarder; other sinks are left open
+    private static void shutdownOutput(WritableByteChannel sink) {
+        if(sink instanceof SocketChannel) {
+            try {
+                ((SocketChannel) sink).shutdownOutput();
+            }
+            catch(IOException ioe) {}
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        }
+        catch(IOException ioe) {}
+    }
+}
@@ -0,0 +1,145 @@
+import java.security.GeneralSecurityException;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+// AES/CTR for one direction of a session, with large buffers split over the common ForkJoinPool
+// the keystream block at byte position p of the stream is AES(key, iv + p / 16), so any part of the stream
+// can be encrypted on its own by a Cipher whose counter starts at that block. buffers of at least THRESHOLD
+// bytes are cut at block boundaries into parts of about SEGMENT bytes, which are encrypted in parallel
+// and land in place in the output; the calling thread does one part itself while pool workers take the others
+// smaller buffers are encrypted on the calling thread, as before, and so is everything on a single processor
+// the result is the same stream as one Cipher over all data, so the other side needs no parallel mode
+// encryption and decryption are the same operation
+public class ParallelCtr {
+
+    public static final int THRESHOLD = 32 * 1024;
+    static final int SEGMENT = 16 * 1024;
+    static final int BLOCKBYTES = 16;
+
+    private static final boolean MULTICORE = Runtime.getRuntime().availableProcessors() > 1;
+
+    // one Cipher per thread that does segments, initialised again for every segment
+    private static final ThreadLocal<Cipher> WORKERCIPHER = ThreadLocal.withInitial(ParallelCtr::newCipher);
+
+    private SecretKey key;
+    private byte[] iv;
+    private long position = 0;            // bytes done so far
+    private Cipher sequential;            // for buffers below THRESHOLD
+    private long sequentialPosition = -1; // where sequential is in the stream, -1 before its first use
+
+    public ParallelCtr(SecretKey key, byte[] iv) {
+        this.key = key;
+        this.iv = iv.clone();
+        this.sequential = newCipher();
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance("AES/CTR/NoPadding");
+        }
+        catch(GeneralSecurityException gse) {
+            throw new IllegalStateException("AES/CTR not available", gse);
+        }
+    }
+
+    // encrypt or decrypt len bytes from in to out (which may be the same array) as the next part of the stream
+    public void update(byte[] in, int inOff, int len, byte[] out, int outOff) throws GeneralSecurityException {
+        update(in, inOff, len, out, outOff, len >= THRESHOLD && MULTICORE);
+    }
+
+    // update with the choice of splitting the buffer left to the caller (tests split on any number of processors)
+    void update(byte[] in, int inOff, int len, byte[] out, int outOff, boolean parallel) throws GeneralSecurityException {
+        if(parallel) {
+            try {
+                new Segment(in, inOff, len, out, outOff, position).invoke();
+            }
+            catch(RuntimeException re) {
+                // the pool may wrap the worker's exception once more
+                for(Throwable t = re; t != null; t = t.getCause()) {
+                    if(t instanceof GeneralSecurityException gse) {
+                        throw gse;
+                    }
+                }
+                throw re;
+            }
+        }
+        else {
+            if(sequentialPosition != position) {
+                seek(sequential, position);
+                sequentialPosition = position;
+            }
+            sequential.update(in, inOff, len, out, outOff);
+            sequentialPosition += len;
+        }
+        position += len;
+    }
+
+    // bytes encrypted or decrypted so far
+    public long getPosition() {
+        return position;
+    }
+
+    // initialise a Cipher to continue the stream at a byte position
+    private void seek(Cipher cipher, long at) throws GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter(iv, at / BLOCKBYTES)));
+        int skip = (int) (at % BLOCKBYTES);
+        if(skip > 0) {
+            cipher.update(new byte[skip]);
+        }
+    }
+
+    // the counter block for a block number: the IV plus the number, as 128-bit big-endian integers
+    // (SunJCE's CTR mode increments all 16 bytes, so this matches one Cipher running from the IV)
+    static byte[] counter(byte[] iv, long block) {
+        byte[] counter = iv.clone();
+        int carry = 0;
+        for(int i = counter.length - 1; i >= 0; i--) {
+            int sum = (counter[i] & 0xff) + (int) (block & 0xff) + carry;
+            counter[i] = (byte) sum;
+            carry = sum >> 8;
+            block >>>= 8;
+        }
+        return counter;
+    }
+
+    // one part of a large buffer; splits itself at a block boundary until it is about SEGMENT bytes
+    private class Segment extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private byte[] in;
+        private int inOff;
+        private int len;
+        private byte[] out;
+        private int outOff;
+        private long at;
+
+        Segment(byte[] in, int inOff, int len, byte[] out, int outOff, long at) {
+            this.in = in;
+            this.inOff = inOff;
+            this.len = len;
+            this.out = out;
+            this.outOff = outOff;
+            this.at = at;
+        }
+
+        protected void compute() {
+            if(len <= SEGMENT + SEGMENT / 2) {
+                try {
+                    Cipher cipher = WORKERCIPHER.get();
+                    seek(cipher, at);
+                    cipher.update(in, inOff, len, out, outOff);
+                }
+                catch(GeneralSecurityException gse) {
+                    throw new IllegalStateException(gse);
+                }
+                return;
+            }
+            // the first half ends on a block boundary of the stream, so the second half starts a block
+            int half = (int) ((at + len / 2) / BLOCKBYTES * BLOCKBYTES - at);
+            invokeAll(new Segment(in, inOff, half, out, outOff, at),
+                      new Segment(in, inOff + half, len - half, out, outOff + half, at + half));
+        }
+    }
+}
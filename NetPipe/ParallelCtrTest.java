@@ -0,0 +1,109 @@
+import java.security.SecureRandom;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Checks that ParallelCtr gives the same stream as one AES/CTR Cipher over all data, for buffers of
+ * lengths around THRESHOLD and SEGMENT that start and end anywhere in a block, split or not.
+ * The split is forced, so the segments are checked on a single processor too.
+ */
+public class ParallelCtrTest {
+    static int[] LENGTHS = {
+        1, 15, ParallelCtr.THRESHOLD - 1, ParallelCtr.THRESHOLD, ParallelCtr.THRESHOLD + 1, 7,
+        ParallelCtr.SEGMENT + ParallelCtr.SEGMENT / 2 + 1, 3 * ParallelCtr.SEGMENT + 5,
+        ParallelCtr.THRESHOLD + ParallelCtr.SEGMENT - 3, 16, 100_003
+    };
+
+    static SecureRandom random = new SecureRandom();
+
+    /* The stream as one Cipher makes it */
+    static byte[] reference(SecretKey key, byte[] iv, byte[] data) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher.doFinal(data);
+    }
+
+    /* Run all lengths through ParallelCtr, at odd offsets in the input and output arrays */
+    static byte[] run(SecretKey key, byte[] iv, byte[] data, boolean parallel) throws Exception {
+        ParallelCtr ctr = new ParallelCtr(key, iv);
+        byte[] result = new byte[data.length];
+        int done = 0;
+        for(int len : LENGTHS) {
+            byte[] in = new byte[len + 3];
+            byte[] out = new byte[len + 5];
+            System.arraycopy(data, done, in, 3, len);
+            ctr.update(in, 3, len, out, 5, parallel);
+            System.arraycopy(out, 5, result, done, len);
+            done += len;
+        }
+        assertEquals(data.length, ctr.getPosition());
+        return result;
+    }
+
+    static byte[] data() {
+        byte[] data = new byte[Arrays.stream(LENGTHS).sum()];
+        random.nextBytes(data);
+        return data;
+    }
+
+    static SecretKey key() {
+        byte[] key = new byte[16];
+        random.nextBytes(key);
+        return new SecretKeySpec(key, "AES");
+    }
+
+    @Test
+    public void testSplitMatchesCipher() throws Exception {
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        SecretKey key = key();
+        byte[] data = data();
+        assertArrayEquals(reference(key, iv, data), run(key, iv, data, true));
+    }
+
+    @Test
+    public void testUnsplitMatchesCipher() throws Exception {
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        SecretKey key = key();
+        byte[] data = data();
+        assertArrayEquals(reference(key, iv, data), run(key, iv, data, false));
+    }
+
+    /* The counter carries over from the low bytes of the IV while the stream goes on */
+    @Test
+    public void testCounterCarry() throws Exception {
+        byte[] iv = new byte[16];
+        Arrays.fill(iv, 8, 16, (byte) 0xff);
+        iv[15] = (byte) 0xf0;
+        SecretKey key = key();
+        byte[] data = data();
+        assertArrayEquals(reference(key, iv, data), run(key, iv, data, true));
+    }
+
+    /* Encrypting in place, with the split and the single Cipher taking turns */
+    @Test
+    public void testInPlaceMixed() throws Exception {
+        byte[] iv = new byte[16];
+        random.nextBytes(iv);
+        SecretKey key = key();
+        byte[] data = data();
+        byte[] expected = reference(key, iv, data);
+        ParallelCtr ctr = new ParallelCtr(key, iv);
+        int done = 0;
+        boolean parallel = true;
+        for(int len : LENGTHS) {
+            ctr.update(data, done, len, data, done, parallel);
+            parallel = !parallel;
+            done += len;
+        }
+        assertArrayEquals(expected, data);
+    }
+}
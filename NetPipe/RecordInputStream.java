@@ -0,0 +1,117 @@
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+// receiving side of the gcm record layer, see RecordOutputStream for the format
+// each record is authenticated before any of its data is returned, so corrupted or forged data
+// is rejected with an IOException instead of being passed on
+// end of file is only reported after the empty end-of-stream record; a connection that ends
+// without it is reported as truncated
+public class RecordInputStream extends FilterInputStream {
+
+    private Cipher cipher;
+    private SecretKey key;
+    private byte[] salt;
+    private long counter = 0;
+    private byte[] header = new byte[RecordOutputStream.HEADERBYTES];
+    private byte[] record = new byte[0];
+    private byte[] plaintext = new byte[0];
+    private int position = 0;
+    private int available = 0;
+    private boolean eof = false;
+
+    public RecordInputStream(InputStream in, SecretKey key, byte[] salt) throws GeneralSecurityException {
+        super(in);
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        this.key = key;
+        this.salt = salt;
+    }
+
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        while(available == 0) {
+            if(eof || !readRecord()) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, available);
+        System.arraycopy(plaintext, position, b, off, n);
+        position += n;
+        available -= n;
+        return n;
+    }
+
+    public int available() {
+        return available;
+    }
+
+    // skip decrypted data, not bytes of the underlying stream
+    public long skip(long n) throws IOException {
+        byte[] b = new byte[(int) Math.min(n, 4096)];
+        int nread = n > 0 ? read(b, 0, b.length) : 0;
+        return Math.max(nread, 0);
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    // read and decrypt the next record
+    // return false after the end-of-stream record
+    private boolean readRecord() throws IOException {
+        readFully(header, header.length);
+        int length = ByteBuffer.wrap(header).getInt();
+        if(length < RecordOutputStream.TAGBYTES || length > RecordOutputStream.MAXRECORDSIZE + RecordOutputStream.TAGBYTES) {
+            throw new IOException("Invalid record length " + length);
+        }
+        if(record.length < length) {
+            record = new byte[length];
+            plaintext = new byte[length];
+        }
+        readFully(record, length);
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(RecordOutputStream.TAGBYTES * 8, RecordOutputStream.nonce(salt, counter++)));
+            cipher.updateAAD(header);
+            available = cipher.doFinal(record, 0, length, plaintext, 0);
+            position = 0;
+        }
+        catch(AEADBadTagException abte) {
+            throw new IOException("Record authentication failed", abte);
+        }
+        catch(GeneralSecurityException gse) {
+            throw new IOException("Error decrypting record", gse);
+        }
+        if(available == 0) {
+            eof = true;
+            return false;
+        }
+        return true;
+    }
+
+    // read exactly len bytes, end of file before that means the stream was cut short
+    private void readFully(byte[] b, int len) throws IOException {
+        int nread = 0;
+        while(nread < len) {
+            int n = in.read(b, nread, len - nread);
+            if(n < 0) {
+                throw new EOFException("Record stream truncated");
+            }
+            nread += n;
+        }
+    }
+}
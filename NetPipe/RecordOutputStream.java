@@ -0,0 +1,92 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+// sending side of the gcm record layer
+// data is sent as records: a 4-byte length (big endian) followed by AES-GCM ciphertext and tag
+// every write is sent right away, split into records of at most recordSize plaintext bytes
+// the nonce is a 4-byte salt followed by an 8-byte record counter, so each record has its own nonce
+// the length field is authenticated as additional data
+// close() sends an empty record to mark the end of the stream, so truncation can be detected
+public class RecordOutputStream extends FilterOutputStream {
+
+    public static final int DEFAULTRECORDSIZE = 16 * 1024;
+    public static final int MAXRECORDSIZE = 1024 * 1024;
+    static final int HEADERBYTES = 4;
+    static final int TAGBYTES = 16;
+
+    private Cipher cipher;
+    private SecretKey key;
+    private byte[] salt;
+    private long counter = 0;
+    private int recordSize;
+    private byte[] record;
+    private boolean closed = false;
+
+    public RecordOutputStream(OutputStream out, SecretKey key, byte[] salt, int recordSize) throws GeneralSecurityException {
+        super(out);
+        if(recordSize < 1 || recordSize > MAXRECORDSIZE) {
+            throw new IllegalArgumentException("Record size must be between 1 and " + MAXRECORDSIZE);
+        }
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        this.key = key;
+        this.salt = salt;
+        this.recordSize = recordSize;
+        this.record = new byte[HEADERBYTES + recordSize + TAGBYTES];
+    }
+
+    // 12-byte GCM nonce for a record: salt followed by the record counter
+    static byte[] nonce(byte[] salt, long counter) {
+        ByteBuffer nonce = ByteBuffer.allocate(12);
+        nonce.put(salt, 0, 4);
+        nonce.putLong(counter);
+        return nonce.array();
+    }
+
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        while(len > 0) {
+            int n = Math.min(len, recordSize);
+            writeRecord(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    // encrypt one record and send it
+    private void writeRecord(byte[] b, int off, int len) throws IOException {
+        if(counter == -1) {
+            throw new IOException("Record counter exhausted");
+        }
+        int length = len + TAGBYTES;
+        ByteBuffer.wrap(record).putInt(0, length);
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAGBYTES * 8, nonce(salt, counter++)));
+            cipher.updateAAD(record, 0, HEADERBYTES);
+            cipher.doFinal(b, off, len, record, HEADERBYTES);
+        }
+        catch(GeneralSecurityException gse) {
+            throw new IOException("Error encrypting record", gse);
+        }
+        out.write(record, 0, HEADERBYTES + length);
+    }
+
+    // send the end-of-stream record, then close the underlying stream
+    public void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        writeRecord(record, 0, 0);
+        flush();
+        out.close();
+    }
+}
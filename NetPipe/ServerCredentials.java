@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.crypto.Cipher;
+
+// the server's certificate and private key, prepared once at startup and shared by all handshakes
+// HandshakeCrypto parses the key and looks up a Cipher every time it is used; here the key is parsed
+// once, the encoded certificate is kept, and Cipher and Signature instances are reused
+// (the digests of the handshake messages are kept per connection, see HandshakeTranscript)
+//
+// every connection runs on a virtual thread of its own, so per-thread instances would never be used
+// twice; instead, instances are taken from a pool for one operation and put back afterwards
+// ServerHello for the rsa key exchange depends on nothing but the certificate and the negotiated
+// parameters, so its encoding is kept for each combination of parameters
+public class ServerCredentials {
+
+    private HandshakeCertificate certificate;
+    private PrivateKey privateKey;
+    private byte[] encodedCertificate;
+    private ConcurrentLinkedQueue<Cipher> ciphers = new ConcurrentLinkedQueue<>();
+    private ConcurrentLinkedQueue<Signature> signatures = new ConcurrentLinkedQueue<>();
+    private ConcurrentHashMap<String, byte[]> serverHellos = new ConcurrentHashMap<>();
+
+    // the private key is given as a byte array in PKCS8/DER format
+    public ServerCredentials(HandshakeCertificate certificate, byte[] keyBytes) throws GeneralSecurityException {
+        this.certificate = certificate;
+        this.privateKey = KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(keyBytes));
+        this.encodedCertificate = certificate.getCertificate().getEncoded();
+        // one of each now, so the first handshake does not pay for the lookups
+        ciphers.add(Cipher.getInstance("RSA"));
+        signatures.add(Signature.getInstance(HandshakeCrypto.SIGNATURE));
+    }
+
+    public HandshakeCertificate getCertificate() {
+        return certificate;
+    }
+
+    // DER encoding of the certificate, as sent in ServerHello
+    public byte[] getEncodedCertificate() {
+        return encodedCertificate.clone();
+    }
+
+    // encrypt with the private key, as HandshakeCrypto does (used for signatures)
+    public byte[] encrypt(byte[] plaintext) throws GeneralSecurityException {
+        return rsa(Cipher.ENCRYPT_MODE, privateKey, plaintext);
+    }
+
+    // decrypt with the private key
+    public byte[] decrypt(byte[] ciphertext) throws GeneralSecurityException {
+        return rsa(Cipher.DECRYPT_MODE, privateKey, ciphertext);
+    }
+
+    // decrypt with a public key, to check what a client signed
+    public byte[] decrypt(PublicKey publicKey, byte[] ciphertext) throws GeneralSecurityException {
+        return rsa(Cipher.DECRYPT_MODE, publicKey, ciphertext);
+    }
+
+    // sign the inputs, one after the other, with the private key (handshake version 2)
+    public byte[] sign(byte[]... inputs) throws GeneralSecurityException {
+        Signature signature = takeSignature();
+        signature.initSign(privateKey);
+        for(byte[] input : inputs) {
+            signature.update(input);
+        }
+        byte[] signed = signature.sign();
+        signatures.add(signature);
+        return signed;
+    }
+
+    // check a client's signature over the inputs with its public key
+    public boolean verify(PublicKey publicKey, byte[] signed, byte[]... inputs) throws GeneralSecurityException {
+        Signature signature = takeSignature();
+        signature.initVerify(publicKey);
+        for(byte[] input : inputs) {
+            signature.update(input);
+        }
+        boolean valid = signature.verify(signed);
+        signatures.add(signature);
+        return valid;
+    }
+
+    private Signature takeSignature() throws GeneralSecurityException {
+        Signature signature = signatures.poll();
+        return signature != null ? signature : Signature.getInstance(HandshakeCrypto.SIGNATURE);
+    }
+
+    // one RSA operation with a pooled Cipher
+    // init resets the Cipher completely, but one that failed is dropped anyway
+    private byte[] rsa(int mode, Key key, byte[] input) throws GeneralSecurityException {
+        Cipher cipher = ciphers.poll();
+        if(cipher == null) {
+            cipher = Cipher.getInstance("RSA");
+        }
+        cipher.init(mode, key);
+        byte[] output = cipher.doFinal(input);
+        ciphers.add(cipher);
+        return output;
+    }
+
+    // encoded ServerHello for the rsa key exchange with the negotiated parameters
+    // the array is shared by all handshakes and must not be changed
+    // (certificate, then transport unless it is ctr, compression, multiplexing, integrity and handshake version 2 only when used)
+    public byte[] getServerHello(SessionParameters parameters) throws IOException {
+        String key = parameters.getTransport() + "/" + parameters.getCompression() + "/" + parameters.isMultiplex() + "/" + parameters.getIntegrity() + "/" + parameters.getHandshakeVersion();
+        byte[] encoded = serverHellos.get(key);
+        if(encoded == null) {
+            encoded = newServerHello(parameters).getBytes();
+            serverHellos.put(key, encoded);
+        }
+        return encoded;
+    }
+
+    // ServerHello with the certificate and the negotiated parameters, for adding more to (ecdhe) or encoding
+    public HandshakeMessage newServerHello(SessionParameters parameters) {
+        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.SERVERHELLO);
+        hm.putBinaryParameter("Certificate", encodedCertificate);
+        if(!parameters.getTransport().equals(SessionParameters.CTR)) {
+            hm.putParameter("Transport", parameters.getTransport());
+        }
+        if(parameters.getCompression().equals(SessionParameters.DEFLATE)) {
+            hm.putParameter("Compression", SessionParameters.DEFLATE);
+        }
+        if(parameters.isMultiplex()) {
+            hm.putParameter("Multiplex", "yes");
+        }
+        if(parameters.getIntegrity().equals(SessionParameters.SHA256)) {
+            hm.putParameter("Integrity", SessionParameters.SHA256);
+        }
+        if(parameters.getHandshakeVersion() >= 2) {
+            hm.putParameter("HandshakeVersion", Integer.toString(parameters.getHandshakeVersion()));
+        }
+        return hm;
+    }
+}
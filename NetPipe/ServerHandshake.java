@@ -0,0 +1,688 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+// server side of the handshake for one client connection
+// the handshake transcript lives in the instance, so several handshakes can run at the same time
+// errors are reported and the step returns null/false -- the caller closes that connection only
+// when ticket keys are set, a valid ticket in ClientHello resumes the session without RSA operations
+// (see ClientHandshake), and clients that ask for it get a new ticket after the handshake
+// with the ecdhe key exchange, the session key comes from X25519 key shares in the hellos instead of
+// an RSA-encrypted Session message, which leaves one RSA operation (the ServerFinished signature)
+// handshake version 2 (negotiated in the hellos) needs one RSA private-key operation in either case instead
+// of up to four: one decryption of the session key blob with rsa, one signature with ecdhe
+public class ServerHandshake {
+
+    private Socket socket;
+    private ServerCredentials credentials;
+    private HandshakeCertificate caCert;
+    private SessionParameters parameters;
+
+    static final int SESSIONBLOBBYTES = 32;  // session key and IV in the Session message of version 2
+
+    private HandshakeTranscript transcript = null;  // digests of the messages so far
+    private HandshakeCertificate clientCert = null;
+
+    private CertificateCache certificateCache = null;
+    private TicketKeys ticketKeys = null;
+    private SessionTicket resumedTicket = null;  // valid ticket from ClientHello
+    private boolean ticketRequested = false;
+    private byte[] clientNonce = null;
+    private byte[] serverNonce = null;
+
+    private KeyExchange keyExchange = null;      // ephemeral key pair, for the ecdhe key exchange
+    private byte[] clientKeyShare = null;
+
+    private Metrics.Handshake metrics = new Metrics.Handshake("server");  // step durations and failure cause
+
+    // the server credentials and CA certificate are shared by all connections
+    // parameters holds the local settings and receives what is negotiated with the client
+    public ServerHandshake(Socket socket, ServerCredentials credentials, HandshakeCertificate caCert, SessionParameters parameters) {
+        this.socket = socket;
+        this.credentials = credentials;
+        this.caCert = caCert;
+        this.parameters = parameters;
+    }
+
+    // look up client certificates in the given cache instead of parsing and verifying each one
+    public void setCertificateCache(CertificateCache certificateCache) {
+        this.certificateCache = certificateCache;
+    }
+
+    // use the given keys to open and issue session tickets, null disables tickets
+    public void setTicketKeys(TicketKeys ticketKeys) {
+        this.ticketKeys = ticketKeys;
+    }
+
+    // run the whole handshake with the client
+    // return the SessionCipher for the connection, or null if the handshake failed
+    // a handshake that ends in a RuntimeException is counted as failed too
+    public SessionCipher run() {
+        SessionCipher sessionCipher = null;
+        try {
+            sessionCipher = runHandshake();
+        }
+        finally {
+            metrics.finish(sessionCipher != null);
+        }
+        return sessionCipher;
+    }
+
+    // the steps of run
+    private SessionCipher runHandshake() {
+        try {
+            transcript = new HandshakeTranscript();
+        }
+        catch(NoSuchAlgorithmException nsae) {
+            error("Error creating digest\n");
+            return null;
+        }
+        if(!recvClientHello()) {
+            return null;
+        }
+        if(resumedTicket != null) {
+            return runResumed();
+        }
+        if(!sendServerHello()) {
+            return null;
+        }
+        SessionCipher sessionCipher;
+        if(keyExchange != null) {
+            sessionCipher = deriveSession();
+            if(sessionCipher == null) {
+                return null;
+            }
+        }
+        else {
+            sessionCipher = recvSession();
+            if(sessionCipher == null) {
+                return null;
+            }
+        }
+        if(!sendServerFinished(sessionCipher)) {
+            return null;
+        }
+        if(ticketRequested && !sendSessionTicket(sessionCipher)) {
+            return null;
+        }
+        if(!recvClientFinished()) {
+            return null;
+        }
+
+        return sessionCipher;
+    }
+
+    // rest of a resumed handshake, after ClientHello
+    private SessionCipher runResumed() {
+        try {
+            serverNonce = SessionTicket.newNonce();
+            SessionCipher sessionCipher = SessionTicket.resumedCipher(resumedTicket.getSecret(), clientNonce, serverNonce);
+            if(!sendResumedHello()) {
+                return null;
+            }
+            if(!sendResumedFinished()) {
+                return null;
+            }
+            if(ticketRequested && !sendSessionTicket(sessionCipher)) {
+                return null;
+            }
+            if(!recvResumedFinished()) {
+                return null;
+            }
+
+            return sessionCipher;
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error deriving resumed session keys\n");
+            return null;
+        }
+    }
+
+    // return the certificate the client presented in ClientHello
+    // null for a resumed session, where the certificate is not checked again
+    public HandshakeCertificate getClientCert() {
+        return clientCert;
+    }
+
+    // return the CN of the client, from its certificate or from the resumed ticket
+    public String getClientName() {
+        if(resumedTicket != null) {
+            return resumedTicket.getClientName();
+        }
+        return clientCert == null ? null : clientCert.getCN();
+    }
+
+    // true if the session was resumed with a ticket
+    public boolean isResumed() {
+        return resumedTicket != null;
+    }
+
+    // report an error, and count it as the cause if the handshake fails
+    private void error(String format, Object... args) {
+        System.err.printf(format, args);
+        metrics.fail(format.strip());
+    }
+
+    // verify client certificate against CA, and that it is valid now (as CertificateCache.Entry does)
+    private boolean verifyClientCert(HandshakeCertificate client) {
+        try {
+            client.verify(caCert);
+            client.getCertificate().checkValidity();
+
+            return true;
+        }
+        catch(CertificateException | NoSuchAlgorithmException | InvalidKeyException | SignatureException | NoSuchProviderException e) {
+            error("Error verifying client certificate\n");
+            return false;
+        }
+    }
+
+    // receive ClientHello message
+    // a valid ticket resumes the session, otherwise the client certificate is verified
+    private boolean recvClientHello() {
+        metrics.phase("recvClientHello");
+        try {
+            byte[] message = HandshakeMessage.recvBytes(socket);
+            HandshakeMessage hm = HandshakeMessage.fromBytes(message);
+            if(hm.getType().getCode() != 1) {
+                throw new IOException();
+            }
+            ticketRequested = "yes".equals(hm.getParameter("TicketRequest"));
+            byte[] decodedTicket = hm.getBinaryParameter("Ticket");
+            clientNonce = hm.getBinaryParameter("ClientNonce");
+            if(ticketKeys != null && decodedTicket != null && clientNonce != null) {
+                resumedTicket = ticketKeys.open(decodedTicket);
+            }
+            if(resumedTicket != null) {
+                transcript.resume(resumedTicket.getSecret());
+            }
+            if(resumedTicket == null) {
+                byte[] decodedCert = hm.getBinaryParameter("Certificate");
+                if(decodedCert == null) {
+                    error("Missing client certificate\n");
+                    return false;
+                }
+                if(certificateCache != null) {
+                    CertificateCache.Entry entry = certificateCache.lookup(decodedCert);
+                    clientCert = entry.getCertificate();
+                    if(!entry.isVerified()) {
+                        error("Error verifying client certificate\n");
+                        return false;
+                    }
+                }
+                else {
+                    clientCert = new HandshakeCertificate(decodedCert);
+                    if(!verifyClientCert(clientCert)) {
+                        return false;
+                    }
+                }
+                if(!negotiateKeyExchange(hm.getParameter("KeyExchange"), hm.getBinaryParameter("KeyShare"))) {
+                    return false;
+                }
+                negotiateVersion(hm.getParameter("HandshakeVersion"));
+            }
+            if(!negotiateTransport(hm.getParameter("Transport"))) {
+                return false;
+            }
+            negotiateCompression(hm.getParameter("Compression"));
+            if(!negotiateMultiplex(hm.getParameter("Multiplex"))) {
+                return false;
+            }
+            negotiateIntegrity(hm.getParameter("Integrity"));
+            transcript.add(hm.getType(), message);
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error receiving ClientHello from client\n");
+            return false;
+        }
+        catch(CertificateException ce) {
+            error("Error reading client certificate\n");
+            return false;
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error resuming session\n");
+            return false;
+        }
+    }
+
+    // accept the transport the client asks for in ClientHello (none means ctr)
+    private boolean negotiateTransport(String transport) {
+        if(transport == null || transport.equals(SessionParameters.CTR)) {
+            parameters.setTransport(SessionParameters.CTR);
+            return true;
+        }
+        if(transport.equals(SessionParameters.GCM)) {
+            parameters.setTransport(SessionParameters.GCM);
+            return true;
+        }
+        error("Unsupported transport %s\n", transport);
+        return false;
+    }
+
+    // compression is an offer: deflate is used when the client offers it and this server accepts it,
+    // anything else means no compression
+    private void negotiateCompression(String compression) {
+        if(!SessionParameters.DEFLATE.equals(compression) || !parameters.getCompression().equals(SessionParameters.DEFLATE)) {
+            parameters.setCompression(SessionParameters.NONE);
+        }
+    }
+
+    // the integrity check is an offer too, used when the client offers it and this server accepts it
+    // a multiplexed session has no single stream to check, so it is never used there
+    private void negotiateIntegrity(String integrity) {
+        if(!SessionParameters.SHA256.equals(integrity) || !parameters.getIntegrity().equals(SessionParameters.SHA256) || parameters.isMultiplex()) {
+            parameters.setIntegrity(SessionParameters.NONE);
+        }
+    }
+
+    // the client may ask for a multiplexed session, which this server must have accepted
+    private boolean negotiateMultiplex(String multiplex) {
+        if(multiplex == null) {
+            parameters.setMultiplex(false);
+            return true;
+        }
+        if(multiplex.equals("yes") && parameters.isMultiplex()) {
+            return true;
+        }
+        error("Multiplexing not accepted\n");
+        return false;
+    }
+
+    // the client offers the highest handshake version it supports (none means 1),
+    // the lower of that and the highest version this server accepts is used
+    private void negotiateVersion(String version) {
+        int offered = 1;
+        try {
+            if(version != null) {
+                offered = Math.max(1, Integer.parseInt(version));
+            }
+        }
+        catch(NumberFormatException nfe) {
+        }
+        parameters.setHandshakeVersion(Math.min(offered, parameters.getHandshakeVersion()));
+    }
+
+    // accept the key exchange the client asks for in ClientHello (none means rsa)
+    // for ecdhe, the client's key share is kept and an ephemeral key pair is made for this connection
+    private boolean negotiateKeyExchange(String exchange, byte[] share) {
+        if(exchange == null || exchange.equals(SessionParameters.RSA)) {
+            parameters.setKeyExchange(SessionParameters.RSA);
+            return true;
+        }
+        if(exchange.equals(SessionParameters.ECDHE) && share != null) {
+            try {
+                clientKeyShare = share;
+                keyExchange = new KeyExchange();
+                parameters.setKeyExchange(SessionParameters.ECDHE);
+                return true;
+            }
+            catch(GeneralSecurityException gse) {
+                error("Error creating key share\n");
+                return false;
+            }
+        }
+        error("Unsupported key exchange %s\n", exchange);
+        return false;
+    }
+
+    // send ServerHello message
+    // the chosen transport is confirmed unless it is the default ctr, compression, multiplexing, the integrity check and
+    // handshake version 2 only when used (see ServerCredentials, which keeps the encoded message for the rsa key exchange)
+    // for ecdhe, the key exchange is confirmed and the server's key share added
+    private boolean sendServerHello() {
+        metrics.phase("sendServerHello");
+        try {
+            if(keyExchange != null) {
+                HandshakeMessage hm = credentials.newServerHello(parameters);
+                hm.putParameter("KeyExchange", SessionParameters.ECDHE);
+                hm.putBinaryParameter("KeyShare", keyExchange.getPublicKeyBytes());
+                transcript.send(hm, socket);
+            }
+            else {
+                byte[] serverHello = credentials.getServerHello(parameters);
+                transcript.add(HandshakeMessage.MessageType.SERVERHELLO, serverHello);
+                HandshakeMessage.send(socket, serverHello);
+            }
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error sending ServerHello\n");
+            return false;
+        }
+    }
+
+    // receive Session message and get session key + IV
+    // version 1 has them RSA-encrypted one by one, version 2 as one blob (key followed by IV)
+    private SessionCipher recvSession() {
+        metrics.phase("recvSession");
+        try {
+            HandshakeMessage hm = transcript.recv(socket);
+            if(hm.getType().getCode() != 3) {
+                throw new IOException();
+            }
+            byte[] decodedSK;
+            byte[] decodedIV;
+            if(parameters.getHandshakeVersion() >= 2) {
+                byte[] blob = hm.getBinaryParameter("SessionBlob");
+                if(blob == null) {
+                    throw new IOException();
+                }
+                blob = credentials.decrypt(blob);
+                if(blob.length != SESSIONBLOBBYTES) {
+                    error("Bad session key blob\n");
+                    return null;
+                }
+                decodedSK = Arrays.copyOfRange(blob, 0, SESSIONBLOBBYTES / 2);
+                decodedIV = Arrays.copyOfRange(blob, SESSIONBLOBBYTES / 2, SESSIONBLOBBYTES);
+            }
+            else {
+                decodedSK = hm.getBinaryParameter("SessionKey");
+                decodedIV = hm.getBinaryParameter("SessionIV");
+                if(decodedSK == null || decodedIV == null) {
+                    throw new IOException();
+                }
+                decodedSK = credentials.decrypt(decodedSK);
+                decodedIV = credentials.decrypt(decodedIV);
+            }
+            SessionKey sk = new SessionKey(decodedSK);
+            SessionCipher sc = new SessionCipher(sk, decodedIV);
+
+            return sc;
+        }
+        catch(IOException ioe) {
+            error("Error receiving Session from client\n");
+            return null;
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error using private key\n");
+            return null;
+        }
+    }
+
+    // ecdhe: session key + IV from the shared secret and both hellos
+    private SessionCipher deriveSession() {
+        metrics.phase("deriveSession");
+        try {
+            byte[] sharedSecret = keyExchange.sharedSecret(clientKeyShare);
+            return KeyExchange.sessionCipher(sharedSecret, transcript.getKeyDerivationDigest());
+        }
+        catch(GeneralSecurityException | RuntimeException e) {
+            error("Error deriving session key from key shares\n");
+            return null;
+        }
+    }
+
+    // send ServerFinished message
+    // with ecdhe, the signed digest also covers ClientHello, so it binds both key shares
+    // version 1 encrypts the digest and the time stamp with the private key one by one
+    private boolean sendServerFinished(SessionCipher sessionCipher) {
+        metrics.phase("sendServerFinished");
+        if(parameters.getHandshakeVersion() >= 2) {
+            return sendServerFinished2(sessionCipher);
+        }
+        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.SERVERFINISHED);
+        try {
+            byte[] digest = keyExchange != null ? transcript.getHellosDigest() : transcript.getServerHelloDigest();
+            byte[] signedDigest = credentials.encrypt(digest);
+            hm.putBinaryParameter("Signature", signedDigest);
+
+            LocalDateTime ldt = LocalDateTime.now();
+            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+            String dateTime = ldt.format(dtf);
+            byte[] dtArray = dateTime.getBytes(StandardCharsets.UTF_8);
+            byte[] signedDT = credentials.encrypt(dtArray);
+            hm.putBinaryParameter("TimeStamp", signedDT);
+
+            transcript.send(hm, socket);
+
+            return true;
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error encrypting digest\n");
+            return false;
+        }
+        catch(IOException ioe) {
+            error("Error sending ServerFinished\n");
+            return false;
+        }
+    }
+
+    // ServerFinished of version 2, with the time stamp in the clear
+    // rsa: a MAC over the hellos, Session and the time stamp, keyed from the session key. only the holder
+    // of the private key could decrypt the session key, so this authenticates the server without another
+    // RSA operation, the same way the Finished messages of TLS 1.2 with RSA key transport do
+    // ecdhe: one signature over the digest of both hellos and the time stamp
+    private boolean sendServerFinished2(SessionCipher sessionCipher) {
+        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.SERVERFINISHED);
+        try {
+            byte[] timeStamp = HandshakeMessage.timeStamp();
+            hm.putParameter("TimeStamp", new String(timeStamp, StandardCharsets.UTF_8));
+            if(keyExchange != null) {
+                hm.putBinaryParameter("Signature", credentials.sign(transcript.getHellosDigest(), timeStamp));
+            }
+            else {
+                byte[] secret = SessionTicket.finishedSecret(sessionCipher);
+                hm.putBinaryParameter("MAC", SessionTicket.hmac(secret, "server finished", transcript.getHellosDigest(), transcript.getSessionDigest(), timeStamp));
+            }
+
+            transcript.send(hm, socket);
+
+            return true;
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error signing ServerFinished\n");
+            return false;
+        }
+        catch(IOException ioe) {
+            error("Error sending ServerFinished\n");
+            return false;
+        }
+    }
+
+    // receive ClientFinished message and check integrity and authentication of handshake
+    private boolean recvClientFinished() {
+        metrics.phase("recvClientFinished");
+        if(parameters.getHandshakeVersion() >= 2) {
+            return recvClientFinished2();
+        }
+        PublicKey clientKey = clientCert.getCertificate().getPublicKey();
+        try {
+            HandshakeMessage hm = transcript.recv(socket);
+            if(hm.getType().getCode() != 4) {
+                throw new IOException();
+            }
+
+            LocalDateTime serverLDT = LocalDateTime.now();
+            byte[] decodedClientTD = hm.getBinaryParameter("TimeStamp");
+            byte[] decodedSign = hm.getBinaryParameter("Signature");
+            if(decodedClientTD == null || decodedSign == null) {
+                throw new IOException();
+            }
+            decodedClientTD = credentials.decrypt(clientKey, decodedClientTD);
+            String clientTD = new String(decodedClientTD, StandardCharsets.UTF_8);
+            DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+            LocalDateTime clientLDT = LocalDateTime.parse(clientTD, dtf);
+            Duration duration = Duration.between(clientLDT, serverLDT);
+            long secondsDiff = duration.getSeconds();
+            if(Math.abs(secondsDiff) > 10) {
+                throw new DateTimeException("");
+            }
+
+            byte[] clientDigest = credentials.decrypt(clientKey, decodedSign);
+            byte[] localDigest = keyExchange != null ? transcript.getHellosDigest() : transcript.getSessionDigest();
+            if(!(Arrays.equals(localDigest, clientDigest))) {
+                throw new ArrayStoreException(); // might be bad programming but I want a unique Exception to catch
+            }
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error receiving ClientFinished from client\n");
+            return false;
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error decrypting ClientFinished from client\n");
+            return false;
+        }
+        catch(DateTimeException dte) {
+            error("ClientFinished message too old (10 seconds)\n");
+            return false;
+        }
+        catch(ArrayStoreException ase) {
+            error("Integrity check failed\n");
+            return false;
+        }
+    }
+
+    // ClientFinished of version 2: one signature over the digest of ClientHello and Session (ServerHello with
+    // ecdhe) and the time stamp, which is sent in the clear
+    private boolean recvClientFinished2() {
+        try {
+            HandshakeMessage hm = transcript.recv(socket);
+            if(hm.getType().getCode() != 4) {
+                throw new IOException();
+            }
+            String timeStamp = hm.getParameter("TimeStamp");
+            byte[] signature = hm.getBinaryParameter("Signature");
+            if(timeStamp == null || signature == null) {
+                throw new IOException();
+            }
+            byte[] timeStampBytes = timeStamp.getBytes(StandardCharsets.UTF_8);
+            byte[] localDigest = keyExchange != null ? transcript.getHellosDigest() : transcript.getSessionDigest();
+            if(!credentials.verify(clientCert.getCertificate().getPublicKey(), signature, localDigest, timeStampBytes)) {
+                error("Integrity check failed\n");
+                return false;
+            }
+            if(!HandshakeMessage.isFresh(timeStampBytes)) {
+                error("ClientFinished message too old (10 seconds)\n");
+                return false;
+            }
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error receiving ClientFinished from client\n");
+            return false;
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error checking ClientFinished from client\n");
+            return false;
+        }
+    }
+
+    // send SessionTicket message with a new ticket for the session
+    // the client derives the same resumption secret from its SessionCipher
+    // without ticket keys, the message is sent without a ticket
+    private boolean sendSessionTicket(SessionCipher sessionCipher) {
+        metrics.phase("sendSessionTicket");
+        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.SESSIONTICKET);
+        try {
+            if(ticketKeys == null) {
+                transcript.send(hm, socket);
+                return true;
+            }
+            SessionTicket ticket = ticketKeys.issue(SessionTicket.resumptionSecret(sessionCipher), getClientName());
+            hm.putBinaryParameter("Ticket", ticket.getTicket());
+            hm.putParameter("Lifetime", Long.toString(ticketKeys.getLifetimeSeconds()));
+            transcript.send(hm, socket);
+
+            return true;
+        }
+        catch(GeneralSecurityException gse) {
+            error("Error issuing session ticket\n");
+            return false;
+        }
+        catch(IOException ioe) {
+            error("Error sending SessionTicket\n");
+            return false;
+        }
+    }
+
+    // send ServerHello of a resumed session, with the server nonce instead of the certificate
+    private boolean sendResumedHello() {
+        metrics.phase("sendResumedHello");
+        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.SERVERHELLO);
+        try {
+            hm.putParameter("Resumed", "yes");
+            hm.putBinaryParameter("ServerNonce", serverNonce);
+            if(!parameters.getTransport().equals(SessionParameters.CTR)) {
+                hm.putParameter("Transport", parameters.getTransport());
+            }
+            if(parameters.getCompression().equals(SessionParameters.DEFLATE)) {
+                hm.putParameter("Compression", SessionParameters.DEFLATE);
+            }
+            if(parameters.isMultiplex()) {
+                hm.putParameter("Multiplex", "yes");
+            }
+            if(parameters.getIntegrity().equals(SessionParameters.SHA256)) {
+                hm.putParameter("Integrity", SessionParameters.SHA256);
+            }
+            transcript.send(hm, socket);
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error sending ServerHello\n");
+            return false;
+        }
+    }
+
+    // send ServerFinished of a resumed session: HMAC with the resumption secret over both hellos (see HandshakeTranscript)
+    private boolean sendResumedFinished() {
+        metrics.phase("sendResumedFinished");
+        HandshakeMessage hm = new HandshakeMessage(HandshakeMessage.MessageType.SERVERFINISHED);
+        try {
+            byte[] mac = transcript.getServerFinishedMac();
+            hm.putBinaryParameter("MAC", mac);
+            transcript.send(hm, socket);
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error sending ServerFinished\n");
+            return false;
+        }
+    }
+
+    // receive ClientFinished of a resumed session and check its HMAC
+    private boolean recvResumedFinished() {
+        metrics.phase("recvResumedFinished");
+        try {
+            HandshakeMessage hm = transcript.recv(socket);
+            if(hm.getType().getCode() != 4) {
+                throw new IOException();
+            }
+            byte[] clientMac = hm.getBinaryParameter("MAC");
+            if(clientMac == null) {
+                throw new IOException();
+            }
+            byte[] localMac = transcript.getClientFinishedMac();
+            if(!MessageDigest.isEqual(localMac, clientMac)) {
+                error("Integrity check failed\n");
+                return false;
+            }
+
+            return true;
+        }
+        catch(IOException ioe) {
+            error("Error receiving ClientFinished from client\n");
+            return false;
+        }
+    }
+}
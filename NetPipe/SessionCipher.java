@@ -1,18 +1,32 @@
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 public class SessionCipher {
 
+    private static int CHANNELBUFFERSIZE = 16 * 1024;
+
     SessionKey sk;
     IvParameterSpec iv;
     Cipher cipher;
@@ -78,4 +92,223 @@ public class SessionCipher {
 
         return cis;
     }
+
+    // attach OutputStream to which encrypted data will be written, for the "parallel" cipher path
+    // same stream as openEncryptedOutputStream, but large writes are encrypted in parallel (see ParallelCtr)
+    OutputStream openParallelOutputStream(OutputStream os) {
+        return new ParallelOutputStream(os, new ParallelCtr(sk.getSecretKey(), iv.getIV()));
+    }
+
+    // attach InputStream from which decrypted data will be read, for the "parallel" cipher path
+    InputStream openParallelInputStream(InputStream is) {
+        return new ParallelInputStream(is, new ParallelCtr(sk.getSecretKey(), iv.getIV()));
+    }
+
+    // return a Cipher initialised for encryption, for callers that process buffers instead of streams
+    Cipher openEncrypter() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        Cipher encrypter = Cipher.getInstance("AES/CTR/NoPadding");
+        encrypter.init(Cipher.ENCRYPT_MODE, sk.getSecretKey(), iv);
+
+        return encrypter;
+    }
+
+    // return a Cipher initialised for decryption, for callers that process buffers instead of streams
+    Cipher openDecrypter() throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        Cipher decrypter = Cipher.getInstance("AES/CTR/NoPadding");
+        decrypter.init(Cipher.DECRYPT_MODE, sk.getSecretKey(), iv);
+
+        return decrypter;
+    }
+
+    // encrypt or decrypt all remaining bytes of src into dst, with a Cipher from openEncrypter/openDecrypter
+    // Cipher.update(ByteBuffer, ByteBuffer) works on direct buffers without copying through heap arrays
+    // AES/CTR output is as long as the input, so dst must have room for src.remaining() bytes
+    static void update(Cipher cipher, ByteBuffer src, ByteBuffer dst) throws IOException {
+        try {
+            cipher.update(src, dst);
+        }
+        catch(ShortBufferException sbe) {
+            throw new IOException("Buffer too small for cipher output", sbe);
+        }
+    }
+
+    // attach WritableByteChannel to which encrypted data will be written
+    // buffer-based counterpart of openEncryptedOutputStream, for blocking channels
+    WritableByteChannel openEncryptedChannel(WritableByteChannel channel) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        return new EncryptedChannel(channel, openEncrypter());
+    }
+
+    // attach ReadableByteChannel from which decrypted data will be read
+    // buffer-based counterpart of openDecryptedInputStream, for blocking channels
+    ReadableByteChannel openDecryptedChannel(ReadableByteChannel channel) throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
+        return new DecryptedChannel(channel, openDecrypter());
+    }
+
+    // encrypts into a direct buffer and writes it to the underlying channel
+    private static class EncryptedChannel implements WritableByteChannel {
+        private WritableByteChannel channel;
+        private Cipher cipher;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(CHANNELBUFFERSIZE);
+
+        EncryptedChannel(WritableByteChannel channel, Cipher cipher) {
+            this.channel = channel;
+            this.cipher = cipher;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            int written = 0;
+            int limit = src.limit();
+            while(src.hasRemaining()) {
+                int n = Math.min(src.remaining(), buffer.capacity());
+                src.limit(src.position() + n);
+                buffer.clear();
+                update(cipher, src, buffer);
+                src.limit(limit);
+                buffer.flip();
+                while(buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                written += n;
+            }
+            return written;
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // reads ciphertext into a direct buffer and decrypts it straight into the caller's buffer
+    private static class DecryptedChannel implements ReadableByteChannel {
+        private ReadableByteChannel channel;
+        private Cipher cipher;
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(CHANNELBUFFERSIZE);
+
+        DecryptedChannel(ReadableByteChannel channel, Cipher cipher) {
+            this.channel = channel;
+            this.cipher = cipher;
+        }
+
+        public int read(ByteBuffer dst) throws IOException {
+            buffer.clear();
+            buffer.limit(Math.min(dst.remaining(), buffer.capacity()));
+            int nread = channel.read(buffer);
+            if(nread <= 0) {
+                return nread;
+            }
+            buffer.flip();
+            update(cipher, buffer, dst);
+            return nread;
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // encrypts each write into a buffer of its own and writes it to the underlying stream
+    private static class ParallelOutputStream extends FilterOutputStream {
+        private ParallelCtr ctr;
+        private byte[] buffer = new byte[CHANNELBUFFERSIZE];
+
+        ParallelOutputStream(OutputStream out, ParallelCtr ctr) {
+            super(out);
+            this.ctr = ctr;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(len > buffer.length) {
+                buffer = new byte[len];
+            }
+            try {
+                ctr.update(b, off, len, buffer, 0);
+            }
+            catch(GeneralSecurityException gse) {
+                throw new IOException("Error encrypting", gse);
+            }
+            out.write(buffer, 0, len);
+        }
+    }
+
+    // reads ciphertext straight into the caller's array and decrypts it there
+    private static class ParallelInputStream extends FilterInputStream {
+        private ParallelCtr ctr;
+
+        ParallelInputStream(InputStream in, ParallelCtr ctr) {
+            super(in);
+            this.ctr = ctr;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int nread = in.read(b, off, len);
+            if(nread <= 0) {
+                return nread;
+            }
+            try {
+                ctr.update(b, off, nread, b, off);
+            }
+            catch(GeneralSecurityException gse) {
+                throw new IOException("Error decrypting", gse);
+            }
+            return nread;
+        }
+
+        public long skip(long n) throws IOException {
+            throw new IOException("skip is not supported on an encrypted stream");
+        }
+    }
+
+    // derive key material from the session key and IV, for the gcm record layer and session tickets
+    // HMAC-SHA256, keyed with the session key, over a label and the IV (so at most 32 bytes)
+    // each use has its own label; for gcm, each direction gets its own key and nonce salt,
+    // so the two directions never share a nonce
+    byte[] deriveSecret(String label, int length) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(sk.getKeyBytes(), "HmacSHA256"));
+        mac.update(label.getBytes(StandardCharsets.UTF_8));
+        byte[] output = mac.doFinal(iv.getIV());
+
+        return Arrays.copyOf(output, length);
+    }
+
+    private static String direction(boolean fromClient) {
+        return fromClient ? "client" : "server";
+    }
+
+    // attach OutputStream to which gcm records will be written
+    // fromClient tells which direction the stream carries, the key and salt depend on it
+    RecordOutputStream openRecordOutputStream(OutputStream os, boolean fromClient, int recordSize) throws GeneralSecurityException {
+        int keyLength = sk.getKeyBytes().length;
+        SecretKey key = new SecretKeySpec(deriveSecret(direction(fromClient) + " write key", keyLength), "AES");
+        byte[] salt = deriveSecret(direction(fromClient) + " write salt", 4);
+
+        return new RecordOutputStream(os, key, salt, recordSize);
+    }
+
+    // attach InputStream from which gcm records will be read and decrypted
+    RecordInputStream openRecordInputStream(InputStream is, boolean fromClient) throws GeneralSecurityException {
+        int keyLength = sk.getKeyBytes().length;
+        SecretKey key = new SecretKeySpec(deriveSecret(direction(fromClient) + " write key", keyLength), "AES");
+        byte[] salt = deriveSecret(direction(fromClient) + " write salt", 4);
+
+        return new RecordInputStream(is, key, salt);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+// parameters of an established session, as agreed on in the handshake plus local settings
+// passed from the handshake to Forwarder.forwardSession
+public class SessionParameters {
+
+    public static final String CTR = "ctr";
+    public static final String GCM = "gcm";
+    public static final String RSA = "rsa";
+    public static final String ECDHE = "ecdhe";
+    public static final String NONE = "none";
+    public static final String DEFLATE = "deflate";
+    public static final String SHA256 = "sha256";
+    public static final int LATESTVERSION = 2;
+
+    private boolean client;
+    private String cipherPath = "stream";
+    private String transport = CTR;
+    private String keyExchange = RSA;
+    private String compression = NONE;
+    private boolean multiplex = false;
+    private String integrity = NONE;
+    private int handshakeVersion = LATESTVERSION;
+    private int recordSize = RecordOutputStream.DEFAULTRECORDSIZE;
+    private BandwidthScheduler.Flow flow = null;
+
+    public SessionParameters(boolean client) {
+        this.client = client;
+    }
+
+    // true on the client side of the connection
+    public boolean isClient() {
+        return client;
+    }
+
+    // local choice of cipher implementation for the ctr transport: "stream", "buffer", or "parallel"
+    // (the stream path with large writes and reads encrypted on several cores, see ParallelCtr)
+    public String getCipherPath() {
+        return cipherPath;
+    }
+
+    public void setCipherPath(String cipherPath) {
+        this.cipherPath = cipherPath;
+    }
+
+    // negotiated transport: CTR for one continuous AES/CTR stream, GCM for AES-GCM records
+    public String getTransport() {
+        return transport;
+    }
+
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    // negotiated key exchange: RSA for a session key encrypted with the server's public key,
+    // ECDHE for ephemeral X25519 key shares in the hello messages
+    public String getKeyExchange() {
+        return keyExchange;
+    }
+
+    public void setKeyExchange(String keyExchange) {
+        this.keyExchange = keyExchange;
+    }
+
+    // compression before encryption: NONE, or DEFLATE for CompressedOutputStream/CompressedInputStream
+    // before the handshake this is what the client offers or the server accepts, after it what was agreed on
+    public String getCompression() {
+        return compression;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    // streams of a Multiplexer instead of one stream of data
+    // before the handshake this is what the client asks for or the server accepts, after it what was agreed on
+    public boolean isMultiplex() {
+        return multiplex;
+    }
+
+    public void setMultiplex(boolean multiplex) {
+        this.multiplex = multiplex;
+    }
+
+    // end-to-end integrity check: NONE, or SHA256 for a trailer after the data in each direction (see IntegrityTrailer)
+    // before the handshake this is what the client offers or the server accepts, after it what was agreed on
+    public String getIntegrity() {
+        return integrity;
+    }
+
+    public void setIntegrity(String integrity) {
+        this.integrity = integrity;
+    }
+
+    // handshake version: 1 for the original Session and Finished messages with four RSA private-key operations
+    // on the server, 2 for one wrapped key blob and signatures (or, with rsa, a MAC for ServerFinished)
+    // before the handshake this is the highest version the client offers or the server accepts, after it what was agreed on
+    public int getHandshakeVersion() {
+        return handshakeVersion;
+    }
+
+    public void setHandshakeVersion(int handshakeVersion) {
+        this.handshakeVersion = handshakeVersion;
+    }
+
+    // largest record this side sends with the gcm transport (a local choice, not negotiated)
+    public int getRecordSize() {
+        return recordSize;
+    }
+
+    public void setRecordSize(int recordSize) {
+        this.recordSize = recordSize;
+    }
+
+    // the connection's share of the server's bandwidth, which writes to the network wait for
+    // (a local setting, null for no limit, see BandwidthScheduler)
+    public BandwidthScheduler.Flow getFlow() {
+        return flow;
+    }
+
+    public void setFlow(BandwidthScheduler.Flow flow) {
+        this.flow = flow;
+    }
+}
@@ -0,0 +1,158 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// session ticket for resuming a session without the RSA handshake
+// the server seals the resumption secret (and who the client is) into an opaque ticket, see TicketKeys
+// the client keeps the ticket together with its own copy of the secret and presents it in a later ClientHello
+// both sides derive the resumption secret from the session key of the handshake that issued the ticket,
+// so the secret itself is never sent
+public class SessionTicket {
+
+    static final int SECRETBYTES = 32;
+    static final int NONCEBYTES = 32;
+
+    private byte[] ticket;
+    private byte[] secret;
+    private String clientName;
+    private long issued;   // milliseconds since the epoch
+    private long expires;  // milliseconds since the epoch
+
+    public SessionTicket(byte[] ticket, byte[] secret, String clientName, long issued, long expires) {
+        this.ticket = ticket;
+        this.secret = secret;
+        this.clientName = clientName;
+        this.issued = issued;
+        this.expires = expires;
+    }
+
+    // the opaque ticket as sent on the wire
+    public byte[] getTicket() {
+        return ticket;
+    }
+
+    public byte[] getSecret() {
+        return secret;
+    }
+
+    // CN of the client the ticket was issued to
+    public String getClientName() {
+        return clientName;
+    }
+
+    public long getIssued() {
+        return issued;
+    }
+
+    public boolean isExpired() {
+        return System.currentTimeMillis() >= expires;
+    }
+
+    // resumption secret of a session
+    static byte[] resumptionSecret(SessionCipher sessionCipher) throws GeneralSecurityException {
+        return sessionCipher.deriveSecret("resumption secret", SECRETBYTES);
+    }
+
+    // key for the Finished MACs of a full handshake of version 2 with the rsa key exchange
+    static byte[] finishedSecret(SessionCipher sessionCipher) throws GeneralSecurityException {
+        return sessionCipher.deriveSecret("finished secret", SECRETBYTES);
+    }
+
+    // random nonce for ClientHello/ServerHello of a resumed handshake
+    static byte[] newNonce() {
+        byte[] nonce = new byte[NONCEBYTES];
+        new SecureRandom().nextBytes(nonce);
+        return nonce;
+    }
+
+    // HMAC-SHA256 with the resumption secret over a label and the given inputs
+    static byte[] hmac(byte[] secret, String label, byte[]... inputs) throws GeneralSecurityException {
+        Mac mac = startHmac(secret, label);
+        for(byte[] input : inputs) {
+            addInput(mac, input);
+        }
+        return mac.doFinal();
+    }
+
+    // the same HMAC, with the inputs added one by one as they become known (see HandshakeTranscript)
+    static Mac startHmac(byte[] secret, String label) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        mac.update(label.getBytes(StandardCharsets.UTF_8));
+        return mac;
+    }
+
+    static void addInput(Mac mac, byte[] input) {
+        mac.update(ByteBuffer.allocate(4).putInt(input.length).array());
+        mac.update(input);
+    }
+
+    // fresh SessionCipher for a resumed session, from the resumption secret and both nonces
+    static SessionCipher resumedCipher(byte[] secret, byte[] clientNonce, byte[] serverNonce) throws GeneralSecurityException {
+        byte[] keyMaterial = hmac(secret, "resumed session key", clientNonce, serverNonce);
+        byte[] ivMaterial = hmac(secret, "resumed session iv", clientNonce, serverNonce);
+        SessionKey sk = new SessionKey(Arrays.copyOf(keyMaterial, 16));
+        return new SessionCipher(sk, Arrays.copyOf(ivMaterial, 16));
+    }
+
+    // load a ticket saved by save(), return null if there is none or it has expired
+    public static SessionTicket load(String pathName) {
+        Properties properties = new Properties();
+        try(InputStream is = new FileInputStream(pathName)) {
+            properties.load(is);
+            SessionTicket st = new SessionTicket(Base64.getDecoder().decode(properties.getProperty("Ticket")),
+                                                 Base64.getDecoder().decode(properties.getProperty("Secret")),
+                                                 properties.getProperty("ClientName"),
+                                                 Long.parseLong(properties.getProperty("Issued")),
+                                                 Long.parseLong(properties.getProperty("Expires")));
+            return st.isExpired() ? null : st;
+        }
+        catch(IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // save the ticket for the next connection
+    // the file holds the resumption secret and must be kept as private as the key file: it is written to a new
+    // file that only the owner can read and write (on file systems with POSIX permissions), which then replaces
+    // the old one, so a ticket file that was readable by others before is not any more
+    public void save(String pathName) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("Ticket", Base64.getEncoder().encodeToString(ticket));
+        properties.setProperty("Secret", Base64.getEncoder().encodeToString(secret));
+        properties.setProperty("ClientName", clientName == null ? "" : clientName);
+        properties.setProperty("Issued", Long.toString(issued));
+        properties.setProperty("Expires", Long.toString(expires));
+        Path path = Path.of(pathName).toAbsolutePath();
+        Path temp;
+        try {
+            temp = Files.createTempFile(path.getParent(), ".ticket", ".tmp", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        catch(UnsupportedOperationException uoe) {
+            temp = Files.createTempFile(path.getParent(), ".ticket", ".tmp");
+        }
+        try {
+            try(OutputStream os = Files.newOutputStream(temp)) {
+                properties.store(os, "NetPipe session ticket");
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+// server side of session tickets: seals and opens tickets with a ticket-encryption key
+// the key is replaced every rotation period; the previous key is kept for one more period,
+// so tickets stay usable for their whole lifetime (which is at most one rotation period)
+// tickets are single use: opened tickets are remembered until they expire, in a set of bounded size.
+// when the set is full, no more tickets are accepted until entries expire -- clients then fall back
+// to the full handshake. the set is kept in the order entries expire, so expired ones are only ever
+// looked for at its head
+//
+// ticket format: key id (4 bytes) | GCM nonce (12 bytes) | AES-GCM(issued (8) | expires (8) | secret (32) | CN)
+public class TicketKeys {
+
+    private long lifetime;   // milliseconds
+    private long rotation;   // milliseconds
+    private int maxTickets;
+
+    private SecretKey currentKey;
+    private int currentId;
+    private SecretKey previousKey = null;
+    private int previousId = -1;
+    private long rotated;
+    private SecureRandom random = new SecureRandom();
+    private LinkedHashMap<String, Long> used = new LinkedHashMap<>(); // ticket hash -> time to forget it, in insertion order
+
+    public TicketKeys(long lifetimeSeconds, long rotationSeconds, int maxTickets) throws GeneralSecurityException {
+        this.rotation = rotationSeconds * 1000;
+        this.lifetime = Math.min(lifetimeSeconds * 1000, this.rotation);
+        this.maxTickets = maxTickets;
+        this.currentKey = newKey();
+        this.currentId = random.nextInt();
+        this.rotated = System.currentTimeMillis();
+    }
+
+    private static SecretKey newKey() throws GeneralSecurityException {
+        KeyGenerator kg = KeyGenerator.getInstance("AES");
+        kg.init(256);
+        return kg.generateKey();
+    }
+
+    // replace the ticket key when the rotation period has passed
+    private void rotate(long now) throws GeneralSecurityException {
+        if(now - rotated < rotation) {
+            return;
+        }
+        if(now - rotated < 2 * rotation) {
+            previousKey = currentKey;
+            previousId = currentId;
+        }
+        else {
+            previousKey = null; // both keys are too old to be useful
+            previousId = -1;
+        }
+        currentKey = newKey();
+        currentId = random.nextInt();
+        rotated = now;
+    }
+
+    public long getLifetimeSeconds() {
+        return lifetime / 1000;
+    }
+
+    // seal a new ticket for the given resumption secret and client name
+    public synchronized SessionTicket issue(byte[] secret, String clientName) throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        rotate(now);
+        byte[] name = (clientName == null ? "" : clientName).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer plaintext = ByteBuffer.allocate(16 + secret.length + name.length);
+        plaintext.putLong(now).putLong(now + lifetime).put(secret).put(name);
+
+        byte[] nonce = new byte[12];
+        random.nextBytes(nonce);
+        byte[] keyId = ByteBuffer.allocate(4).putInt(currentId).array();
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, currentKey, new GCMParameterSpec(128, nonce));
+        cipher.updateAAD(keyId);
+        byte[] ciphertext = cipher.doFinal(plaintext.array());
+
+        ByteBuffer ticket = ByteBuffer.allocate(4 + 12 + ciphertext.length);
+        ticket.put(keyId).put(nonce).put(ciphertext);
+        return new SessionTicket(ticket.array(), secret, clientName, now, now + lifetime);
+    }
+
+    // open a ticket presented by a client
+    // return null if it is unknown, forged, expired, already used, or the replay set is full
+    public synchronized SessionTicket open(byte[] ticket) {
+        try {
+            long now = System.currentTimeMillis();
+            rotate(now);
+            if(ticket.length < 4 + 12 + 16 + 16 + SessionTicket.SECRETBYTES) {
+                return null;
+            }
+            ByteBuffer bb = ByteBuffer.wrap(ticket);
+            int keyId = bb.getInt();
+            SecretKey key;
+            if(keyId == currentId) {
+                key = currentKey;
+            }
+            else if(keyId == previousId && previousKey != null) {
+                key = previousKey;
+            }
+            else {
+                return null;
+            }
+            byte[] nonce = new byte[12];
+            bb.get(nonce);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, nonce));
+            cipher.updateAAD(ticket, 0, 4);
+            ByteBuffer plaintext = ByteBuffer.wrap(cipher.doFinal(ticket, 16, ticket.length - 16));
+
+            long issued = plaintext.getLong();
+            long expires = plaintext.getLong();
+            byte[] secret = new byte[SessionTicket.SECRETBYTES];
+            plaintext.get(secret);
+            byte[] name = new byte[plaintext.remaining()];
+            plaintext.get(name);
+            if(now >= expires) {
+                return null;
+            }
+            if(!markUsed(ticket, now)) {
+                return null;
+            }
+            return new SessionTicket(ticket, secret, new String(name, StandardCharsets.UTF_8), issued, expires);
+        }
+        catch(GeneralSecurityException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // remember a ticket as used, return false if it was used before or there is no room
+    // an entry is kept for one lifetime from when it is added, which is no earlier than the ticket expires;
+    // so the times to forget entries grow in insertion order, and only the expired head of the map is removed
+    private boolean markUsed(byte[] ticket, long now) throws GeneralSecurityException {
+        Iterator<Long> it = used.values().iterator();
+        while(it.hasNext() && it.next() <= now) {
+            it.remove();
+        }
+        String hash = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(ticket));
+        if(used.containsKey(hash) || used.size() >= maxTickets) {
+            return false;
+        }
+        used.put(hash, now + lifetime);
+        return true;
+    }
+}
@@ -1,34 +1,155 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.NoSuchAlgorithmException;
 import java.util.Base64;
+import java.util.stream.IntStream;
 
+// print the SHA-256 digest of a file, Base64 encoded
+//
+//   java FileDigest <file>                    read the file through one direct buffer
+//   java FileDigest --mmap <file>             hash the file where it is mapped, a window at a time
+//   java FileDigest --tree [<chunk MB>] <file>  tree hash of fixed-size chunks, on all cores
+//
+// the first two give the same digest and use the same memory for any size of file
+// the tree hash is NOT the SHA-256 of the file: every chunk of <chunk MB> (default 8) is hashed on its own,
+// in parallel, as SHA-256(0x00 | chunk), and the result is SHA-256(0x01 | chunk size | chunk digests), with
+// the chunk size as 8 bytes big endian. the same file gives the same tree hash only with the same chunk size
 public class FileDigest {
-    public static void main(String[] args) {
-        String filePath = args[0];
 
-        try {
-            InputStream is = new FileInputStream(filePath);
-            byte[] buffer = new byte[1];
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    static final int BUFFERSIZE = 1024 * 1024;
+    static final long MAPWINDOW = 64L * 1024 * 1024;
+    static final int CHUNKMB = 8;
+    static final byte LEAF = 0;
+    static final byte ROOT = 1;
 
-            // read 1 byte at a time because it worked in IK1203 :)
-            while(is.read(buffer) != -1) {
-                baos.write(buffer);
+    // one buffer per thread that hashes chunks in tree mode
+    private static final ThreadLocal<ByteBuffer> CHUNKBUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFERSIZE));
+
+    public static void main(String[] args) {
+        String mode = "stream";
+        long chunkSize = CHUNKMB * 1024L * 1024;
+        int i = 0;
+        try {
+            if(args.length > 1 && args[0].equals("--mmap")) {
+                mode = "mmap";
+                i = 1;
+            }
+            else if(args.length > 1 && args[0].equals("--tree")) {
+                mode = "tree";
+                i = 1;
+                if(args.length > 2) {
+                    chunkSize = Integer.parseInt(args[1]) * 1024L * 1024;
+                    i = 2;
+                }
             }
+        }
+        catch(NumberFormatException nfe) {
+            chunkSize = 0;
+        }
+        if(args.length != i + 1 || chunkSize <= 0) {
+            System.err.println("Usage: java FileDigest [--mmap | --tree [<chunk MB>]] <file>");
+            System.exit(1);
+        }
+        String filePath = args[i];
 
-            // create a digest from the buffer
-            byte[] data = baos.toByteArray();
-            HandshakeDigest hd = new HandshakeDigest();
-            hd.update(data);
-            byte[] digest = hd.digest();
+        try (FileChannel channel = FileChannel.open(Path.of(filePath), StandardOpenOption.READ)) {
+            byte[] digest;
+            if(mode.equals("mmap")) {
+                digest = mappedDigest(channel);
+            }
+            else if(mode.equals("tree")) {
+                digest = treeDigest(channel, chunkSize);
+            }
+            else {
+                digest = streamDigest(channel);
+            }
 
             // encode with base64 and print out
             String decodedDigest = Base64.getEncoder().encodeToString(digest);
             System.out.println(decodedDigest);
-            is.close();
-            baos.close();
+        }
+        catch(UncheckedIOException uioe) {
+            uioe.getCause().printStackTrace();
+            System.exit(1);
         }
         catch(Exception e) {
             e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // read the file in order through one direct buffer, which is hashed without a copy to the heap
+    static byte[] streamDigest(FileChannel channel) throws IOException, NoSuchAlgorithmException {
+        HandshakeDigest hd = new HandshakeDigest();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFERSIZE);
+        while(channel.read(buffer) != -1) {
+            buffer.flip();
+            hd.update(buffer);
+            buffer.clear();
+        }
+        return hd.digest();
+    }
+
+    // map the file a window at a time and hash the pages where they are, with no read at all
+    // windows keep the address space used small, and below the 2 GB limit of one mapping
+    static byte[] mappedDigest(FileChannel channel) throws IOException, NoSuchAlgorithmException {
+        HandshakeDigest hd = new HandshakeDigest();
+        long size = channel.size();
+        for(long position = 0; position < size; position += MAPWINDOW) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPWINDOW, size - position));
+            hd.update(window);
+        }
+        return hd.digest();
+    }
+
+    // hash the chunks in parallel on the common ForkJoinPool, then the chunk digests in order
+    // FileChannel reads at a position do not share a file pointer, so all chunks read from one channel
+    // an empty file is one empty chunk
+    static byte[] treeDigest(FileChannel channel, long chunkSize) throws IOException, NoSuchAlgorithmException {
+        long size = channel.size();
+        int chunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+        byte[][] leaves = IntStream.range(0, chunks).parallel()
+            .mapToObj(n -> chunkDigest(channel, n * chunkSize, Math.min(chunkSize, size - n * chunkSize)))
+            .toArray(byte[][]::new);
+
+        HandshakeDigest hd = new HandshakeDigest();
+        hd.update(new byte[] { ROOT });
+        hd.update(ByteBuffer.allocate(8).putLong(chunkSize).array());
+        for(byte[] leaf : leaves) {
+            hd.update(leaf);
+        }
+        return hd.digest();
+    }
+
+    private static byte[] chunkDigest(FileChannel channel, long start, long length) {
+        try {
+            HandshakeDigest hd = new HandshakeDigest();
+            hd.update(new byte[] { LEAF });
+            ByteBuffer buffer = CHUNKBUFFER.get();
+            long position = start;
+            long end = start + length;
+            while(position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int n = channel.read(buffer, position);
+                if(n < 0) {
+                    throw new EOFException("File shorter than expected");
+                }
+                position += n;
+                buffer.flip();
+                hd.update(buffer);
+            }
+            return hd.digest();
+        }
+        catch(IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+        catch(NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(nsae);
         }
     }
 }
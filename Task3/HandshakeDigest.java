@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -15,6 +16,17 @@ public class HandshakeDigest {
         md.update(input);
     }
 
+    // update digest with len bytes of input, starting at offset
+    public void update(byte[] input, int offset, int len) {
+        md.update(input, offset, len);
+    }
+
+    // update digest with the remaining bytes of a buffer, which are consumed
+    // direct and memory-mapped buffers are hashed where they are, without copying them to the heap
+    public void update(ByteBuffer input) {
+        md.update(input);
+    }
+
     // compute final digest
     public byte[] digest() {
         byte[] digest = md.digest();
@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import javax.crypto.SecretKey;
 import java.security.NoSuchAlgorithmException;
@@ -62,4 +63,21 @@ public class HandshakeDigestTest {
 		byte[] hash = digest.digest();
         assertArrayEquals(hash, multihash);
     }
+
+	/*
+	 * Hash the data from a direct buffer, in pieces, and check that the digest is the same
+	 */
+    @Test
+    public void testDirectBufferGivesSameDigest() throws NoSuchAlgorithmException {
+		HandshakeDigest digest = new HandshakeDigest();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+		buffer.put(data).flip();
+
+		digest.update(data, 0, 5);
+		buffer.position(5);
+		digest.update(buffer);
+		byte[] hash = digest.digest();
+        assertArrayEquals(hash, singlehash);
+        assertEquals(buffer.remaining(), 0);
+    }
 }
\ No newline at end of file